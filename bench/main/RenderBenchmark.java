@@ -0,0 +1,173 @@
+package main;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/*
+ * Headless rendering benchmark for MapPanel and TileSet. Every scenario paints
+ * into an offscreen viewport sized image and reports the mean time and the
+ * bytes allocated per frame, so rendering regressions show up before a release.
+ *
+ * Run with: java -Djava.awt.headless=true -cp bin main.RenderBenchmark
+ */
+public class RenderBenchmark {
+
+	private static final int VIEWPORT_WIDTH = 800;
+	private static final int VIEWPORT_HEIGHT = 600;
+
+	private static final int TILE_SIZE = 32;
+
+	// from the default map size up to MapPanel's maximum
+	private static final int[][] MAP_SIZES = { { 24, 18 }, { 256, 256 }, { 1024, 1024 } };
+	private static final int[] TILESET_SIZES = { 256, 2048 };
+
+	private static final long WARMUP_NANOS = 500_000_000L;
+	private static final long MEASURE_NANOS = 2_000_000_000L;
+	private static final int MAXIMUM_FRAMES = 1000;
+
+	private enum Layers {
+		none(false, false, false),
+		collision(true, false, false),
+		grid(false, true, false),
+		brush(false, false, true),
+		all(true, true, true);
+
+		final boolean drawCollision;
+		final boolean drawGrid;
+		final boolean drawBrush;
+
+		Layers(boolean drawCollision, boolean drawGrid, boolean drawBrush) {
+			this.drawCollision = drawCollision;
+			this.drawGrid = drawGrid;
+			this.drawBrush = drawBrush;
+		}
+	}
+
+	private interface Frame {
+		void paint(Graphics2D g2d);
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		BufferedImage canvas = new BufferedImage(VIEWPORT_WIDTH, VIEWPORT_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+
+		System.out.printf("%-10s %-10s %-10s %14s %14s%n", "map", "clip", "layers", "us/frame", "bytes/frame");
+		for(int[] size : MAP_SIZES) {
+			MapPanel mapPanel = createMap(size[0], size[1]);
+			String name = size[0] + "x" + size[1];
+
+			Rectangle[] clips = {
+				new Rectangle(0, 0, size[0] * TILE_SIZE, size[1] * TILE_SIZE),
+				new Rectangle(0, 0, VIEWPORT_WIDTH, VIEWPORT_HEIGHT),
+				new Rectangle(TILE_SIZE - 2, TILE_SIZE - 2, TILE_SIZE + 4, TILE_SIZE + 4)
+			};
+			String[] clipNames = { "map", "viewport", "cell" };
+
+			boolean brush = false;
+			for(Layers layers : Layers.values()) {
+				mapPanel.setDrawCollisionLayer(layers.drawCollision);
+				mapPanel.setDrawGrid(layers.drawGrid);
+				// drawTileLayer toggles the tile brush preview
+				if(layers.drawBrush != brush) {
+					mapPanel.drawTileLayer();
+					brush = layers.drawBrush;
+				}
+				for(int i = 0; i < clips.length; i++) {
+					run(name, clipNames[i], layers.name(), canvas, clips[i], mapPanel::paintComponent);
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.printf("%-10s %-10s %-10s %14s %14s%n", "tileset", "clip", "", "us/frame", "bytes/frame");
+		for(int size : TILESET_SIZES) {
+			TileSet tileset = new TileSet(new MapPanel());
+			tileset.loadTileset(TILE_SIZE, TILE_SIZE, createSheet(size, size));
+			tileset.setSize(tileset.getPreferredSize());
+			String name = size + "px";
+
+			run(name, "panel", "", canvas, new Rectangle(tileset.getSize()), tileset::paintComponent);
+			run(name, "viewport", "", canvas, new Rectangle(0, 0, 256, VIEWPORT_HEIGHT), tileset::paintComponent);
+		}
+	}
+
+	private static void run(String map, String clip, String layers, BufferedImage canvas, Rectangle bounds, Frame frame) {
+		Graphics2D g2d = canvas.createGraphics();
+
+		long end = System.nanoTime() + WARMUP_NANOS;
+		while(System.nanoTime() < end) {
+			g2d.setClip(bounds);
+			frame.paint(g2d);
+		}
+
+		int frames = 0;
+		long startBytes = allocatedBytes();
+		long start = System.nanoTime();
+		end = start + MEASURE_NANOS;
+		while(frames < MAXIMUM_FRAMES && System.nanoTime() < end) {
+			g2d.setClip(bounds);
+			frame.paint(g2d);
+			frames++;
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = allocatedBytes() - startBytes;
+		g2d.dispose();
+
+		System.out.printf("%-10s %-10s %-10s %14.1f %14s%n", map, clip, layers, elapsed / 1000.0 / frames,
+				startBytes < 0 ? "n/a" : Long.toString(bytes / frames));
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/* a map filled with random tiles and roughly a third of the cells blocked */
+	private static MapPanel createMap(int columns, int rows) {
+		MapPanel mapPanel = new MapPanel();
+		TileSet tileset = new TileSet(mapPanel);
+		mapPanel.setTileSet(tileset);
+		tileset.loadTileset(TILE_SIZE, TILE_SIZE, createSheet(256, 256));
+		mapPanel.loadNewMap(columns, rows, TILE_SIZE, TILE_SIZE);
+		mapPanel.setSize(mapPanel.getPreferredSize());
+
+		Random random = new Random(42);
+		for(int y = 0; y < rows; y++) {
+			for(int x = 0; x < columns; x++) {
+				mapPanel.setTile(x, y, random.nextInt(64));
+				if(random.nextInt(3) == 0) {
+					mapPanel.setCollision(x, y, 1);
+				}
+			}
+		}
+
+		mapPanel.setPaintbrush(1);
+		mapPanel.mouseMoved(new MouseEvent(mapPanel, MouseEvent.MOUSE_MOVED, 0, 0, TILE_SIZE + 1, TILE_SIZE + 1, 0, false));
+		return mapPanel;
+	}
+
+	private static BufferedImage createSheet(int width, int height) {
+		BufferedImage sheet = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = sheet.createGraphics();
+		Random random = new Random(7);
+		for(int y = 0; y < height; y += TILE_SIZE) {
+			for(int x = 0; x < width; x += TILE_SIZE) {
+				g2d.setColor(new Color(random.nextInt(0x1000000)));
+				g2d.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+			}
+		}
+		g2d.dispose();
+		return sheet;
+	}
+
+}
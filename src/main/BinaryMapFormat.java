@@ -0,0 +1,354 @@
+package main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/* A compact binary map file, read and written through a buffer a row at a time.
+   The file is never memory mapped, a mapped file can't be moved or deleted on
+   some platforms until the mapping is garbage collected, and saves and
+   snapshots are written to a part file and moved into place.
+
+   header, big-endian:
+       int    magic "TMAP"
+       short  version
+       byte   encoding, ENCODING_RAW or ENCODING_RLE
+       byte   bytes per tile id in raw files, 2 or 4
+       int    columns
+       int    rows
+       int    tile width
+       int    tile height
+       int    layer count
+
+   followed by the tile layer and then the collision layer. Raw layers are
+   row-major, tile ids at the stated width and collision packed eight cells
+   to a byte. RLE layers store each row as pairs of varints, a run length
+   and the value repeated for that run. */
+public class BinaryMapFormat {
+
+	private static final int MAGIC = 0x544D4150;
+	private static final short VERSION = 1;
+
+	private static final int HEADER_SIZE = 28;
+	private static final int LAYER_COUNT = 2;
+
+	public static final byte ENCODING_RAW = 0;
+	public static final byte ENCODING_RLE = 1;
+
+	// holds more than the largest row of either layer, a row of runs is at most two five byte varints a cell
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private BinaryMapFormat() {
+	}
+
+	/* the listener, which may be null, is told after every row of each layer */
+	public static void write(Path path, MapModel map, int tileWidth, int tileHeight, byte encoding, ProgressListener listener) throws IOException {
+		int columns = map.getColumns();
+		int rows = map.getRows();
+		int[] row = new int[columns];
+
+		// raw files use two bytes a tile unless an id doesn't fit
+		int tileBytes = 2;
+		if(encoding == ENCODING_RAW) {
+			for(int y = 0; y < rows && tileBytes == 2; y++) {
+				map.getTileRow(y, row);
+				for(int x = 0; x < columns; x++) {
+					if(row[x] < 0 || row[x] > 0xFFFF) {
+						tileBytes = 4;
+						break;
+					}
+				}
+			}
+		}
+		int rowBytes = encoding == ENCODING_RLE ? columns * 10 : columns * tileBytes;
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.putInt(MAGIC);
+			buffer.putShort(VERSION);
+			buffer.put(encoding);
+			buffer.put((byte)tileBytes);
+			buffer.putInt(columns);
+			buffer.putInt(rows);
+			buffer.putInt(tileWidth);
+			buffer.putInt(tileHeight);
+			buffer.putInt(LAYER_COUNT);
+
+			if(encoding == ENCODING_RLE) {
+				RowRegions regions = new RowRegions(map);
+				for(int y = 0; y < rows; y++) {
+					makeRoom(channel, buffer, rowBytes);
+					encodeRow(map, y, regions.get(y), false, buffer);
+					reportProgress(listener, y + 1, rows * 2L);
+				}
+				regions = new RowRegions(map);
+				for(int y = 0; y < rows; y++) {
+					makeRoom(channel, buffer, rowBytes);
+					encodeRow(map, y, regions.get(y), true, buffer);
+					reportProgress(listener, rows + y + 1, rows * 2L);
+				}
+			}
+			else {
+				for(int y = 0; y < rows; y++) {
+					makeRoom(channel, buffer, rowBytes);
+					map.getTileRow(y, row);
+					for(int x = 0; x < columns; x++) {
+						if(tileBytes == 2) {
+							buffer.putShort((short)row[x]);
+						}
+						else {
+							buffer.putInt(row[x]);
+						}
+					}
+					reportProgress(listener, y + 1, rows * 2L);
+				}
+				int bits = 0;
+				int count = 0;
+				for(int y = 0; y < rows; y++) {
+					makeRoom(channel, buffer, columns / 8 + 1);
+					map.getCollisionRow(y, row);
+					for(int x = 0; x < columns; x++) {
+						bits |= row[x] << count;
+						if(++count == 8) {
+							buffer.put((byte)bits);
+							bits = 0;
+							count = 0;
+						}
+					}
+					reportProgress(listener, rows + y + 1, rows * 2L);
+				}
+				if(count > 0) {
+					buffer.put((byte)bits);
+				}
+			}
+			writeBuffer(channel, buffer);
+			channel.force(true);
+		}
+	}
+
+	/* write out what the buffer holds unless it has room for size more bytes */
+	private static void makeRoom(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+		if(buffer.remaining() < size) {
+			writeBuffer(channel, buffer);
+		}
+	}
+
+	private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/* make sure the buffer holds the next size bytes of the file, or all of it that is left */
+	private static void fill(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+		if(buffer.remaining() >= size) { return; }
+
+		buffer.compact();
+		while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+		}
+		buffer.flip();
+	}
+
+	/* load a map file into the panel, replacing its current map */
+	public static void read(Path path, MapPanel mapPanel) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if(channel.size() < HEADER_SIZE) {
+				throw new IOException("Not a binary map file");
+			}
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.limit(0);
+			fill(channel, buffer, HEADER_SIZE);
+			if(buffer.getInt() != MAGIC) {
+				throw new IOException("Not a binary map file");
+			}
+			if(buffer.getShort() != VERSION) {
+				throw new IOException("Unsupported binary map version");
+			}
+			byte encoding = buffer.get();
+			int tileBytes = buffer.get();
+			int columns = buffer.getInt();
+			int rows = buffer.getInt();
+			int tileWidth = buffer.getInt();
+			int tileHeight = buffer.getInt();
+			int layers = buffer.getInt();
+			if(!MapPanel.isValidSize(columns, rows)) {
+				throw new IOException("Invalid map size " + columns + "x" + rows);
+			}
+			if(columns <= 0 || rows <= 0 || tileWidth <= 0 || tileHeight <= 0 || layers < LAYER_COUNT
+					|| (encoding != ENCODING_RAW && encoding != ENCODING_RLE) || (tileBytes != 2 && tileBytes != 4)) {
+				throw new IOException("Corrupt binary map header");
+			}
+
+			// the model starts empty, so only non-empty cells need to be written
+			MapModel map = MapPanel.createModel(columns, rows);
+			if(encoding == ENCODING_RLE) {
+				for(int y = 0; y < rows; y++) {
+					fill(channel, buffer, columns * 10);
+					decodeRow(buffer, map, y, columns, false);
+				}
+				for(int y = 0; y < rows; y++) {
+					fill(channel, buffer, columns * 10);
+					decodeRow(buffer, map, y, columns, true);
+				}
+			}
+			else {
+				for(int y = 0; y < rows; y++) {
+					fill(channel, buffer, columns * tileBytes);
+					for(int x = 0; x < columns; x++) {
+						int id = tileBytes == 2 ? buffer.getShort() & 0xFFFF : buffer.getInt();
+						if(id != 0) {
+							map.setTile(x, y, id);
+						}
+					}
+				}
+				int bits = 0;
+				int count = 8;
+				for(int y = 0; y < rows; y++) {
+					fill(channel, buffer, columns / 8 + 1);
+					for(int x = 0; x < columns; x++) {
+						if(count == 8) {
+							bits = buffer.get();
+							count = 0;
+						}
+						if((bits >> count++ & 1) != 0) {
+							map.setCollision(x, y, 1);
+						}
+					}
+				}
+			}
+			mapPanel.loadMap(map, tileWidth, tileHeight);
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException("Binary map file is truncated", e);
+		}
+	}
+
+	private static void reportProgress(ProgressListener listener, long done, long total) throws IOException {
+		if(listener != null && !listener.progress(done, total)) {
+			throw new InterruptedIOException("Save cancelled");
+		}
+	}
+
+	/* write a row of a layer as runs. only the cells inside the spans, the regions
+	   with data crossing the row, are read, everything between them is empty and
+	   joins the runs of zeros */
+	private static void encodeRow(MapModel map, int y, List<int[]> spans, boolean collision, ByteBuffer out) {
+		int columns = map.getColumns();
+		int value = 0;
+		int run = 0;
+		int x = 0;
+		for(int i = 0; i <= spans.size(); i++) {
+			int start = i < spans.size() ? Math.max(x, spans.get(i)[0]) : columns;
+			int end = i < spans.size() ? Math.max(x, spans.get(i)[0] + spans.get(i)[2]) : columns;
+			// the gap before the span
+			if(start > x) {
+				if(value != 0 && run > 0) {
+					putVarint(run, out);
+					putVarint(value, out);
+					run = 0;
+				}
+				value = 0;
+				run += start - x;
+			}
+			for(int cx = start; cx < end; cx++) {
+				int cell = collision ? map.getCollision(cx, y) : map.getTile(cx, y);
+				if(cell != value && run > 0) {
+					putVarint(run, out);
+					putVarint(value, out);
+					run = 0;
+				}
+				value = cell;
+				run++;
+			}
+			x = end;
+		}
+		if(run > 0) {
+			putVarint(run, out);
+			putVarint(value, out);
+		}
+	}
+
+	/* the regions of a map with data in them that cross each row, asked for one row after another */
+	private static class RowRegions {
+
+		private final List<int[]> regions;
+		private final List<int[]> active;
+		private int next;
+
+		RowRegions(MapModel map) {
+			regions = new ArrayList<>();
+			map.forEachRegion((x, y, width, height) -> regions.add(new int[] { x, y, width, height }));
+			regions.sort(Comparator.comparingInt(region -> region[1]));
+			active = new ArrayList<>();
+		}
+
+		/* sorted from left to right */
+		List<int[]> get(int y) {
+			active.removeIf(region -> region[1] + region[3] <= y);
+			boolean added = false;
+			while(next < regions.size() && regions.get(next)[1] <= y) {
+				active.add(regions.get(next++));
+				added = true;
+			}
+			if(added) {
+				active.sort(Comparator.comparingInt(region -> region[0]));
+			}
+			return active;
+		}
+
+	}
+
+	private static void decodeRow(ByteBuffer in, MapModel map, int y, int columns, boolean collision) throws IOException {
+		int x = 0;
+		while(x < columns) {
+			int run = getVarint(in);
+			int value = getVarint(in);
+			if(run <= 0 || run > columns - x) {
+				throw new IOException("Corrupt run in binary map file");
+			}
+			if(value != 0) {
+				for(int i = x; i < x + run; i++) {
+					if(collision) {
+						map.setCollision(i, y, 1);
+					}
+					else {
+						map.setTile(i, y, value);
+					}
+				}
+			}
+			x += run;
+		}
+	}
+
+	/* unsigned LEB128, seven bits per byte with the high bit marking a continuation */
+	private static void putVarint(int value, ByteBuffer out) {
+		while((value & ~0x7F) != 0) {
+			out.put((byte)(value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	private static int getVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt varint in binary map file");
+	}
+
+}
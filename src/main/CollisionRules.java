@@ -0,0 +1,94 @@
+package main;
+
+import java.util.Arrays;
+
+/* Which tile ids block movement, for generating the collision layer from the tile layer.
+   The rules start out from what the tiles look like: a tile blocks if at least
+   half of it is covered, going by the alpha of its pixels, so fully solid tiles
+   block and fully transparent ones don't. The empty tile 0 never blocks, and
+   ids the tileset doesn't have always do. Either can be overridden tile by
+   tile. A tile that is passable only because of how it looks doesn't clear
+   collision painted under it, only one made passable by hand does. The rules
+   are kept as bit sets, so looking up a cell is a shift and a mask. */
+public class CollisionRules {
+
+	public static final float BLOCKING_COVERAGE = 0.5f;
+
+	private long[] blocking;
+	// ids whose rule was set by hand
+	private long[] overridden;
+	// ids from here on block
+	private int tileCount;
+
+	public CollisionRules() {
+		reset();
+	}
+
+	public boolean blocks(int id) {
+		if(id == 0) { return false; }
+		if(id < 0 || id >= tileCount) { return true; }
+		return (blocking[id >> 6] & 1L << id) != 0;
+	}
+
+	/* true if the rule for this tile was set by hand rather than from how it looks */
+	public boolean isOverridden(int id) {
+		return id > 0 && id < tileCount && (id >> 6) < overridden.length && (overridden[id >> 6] & 1L << id) != 0;
+	}
+
+	/* the collision value a cell holding this tile should have */
+	public int getCollision(int id) {
+		return blocks(id) ? 1 : 0;
+	}
+
+	/* true if a cell holding this tile may have this collision. a tile that blocks
+	   always has it and one made passable by hand never does, any other keeps what was painted */
+	public boolean allows(int id, int collision) {
+		if(blocks(id)) { return collision != 0; }
+		return collision == 0 || !isOverridden(id);
+	}
+
+	/* set by hand. returns false if the rule was already set that way by hand */
+	public boolean setBlocks(int id, boolean blocks) {
+		if(id <= 0 || (blocks(id) == blocks && isOverridden(id))) { return false; }
+
+		while(tileCount <= id) {
+			blocking = setBit(blocking, tileCount++, true);
+		}
+		blocking = setBit(blocking, id, blocks);
+		overridden = setBit(overridden, id, true);
+		return true;
+	}
+
+	private static long[] setBit(long[] bits, int id, boolean value) {
+		if((id >> 6) >= bits.length) {
+			bits = Arrays.copyOf(bits, Math.max((id >> 6) + 1, bits.length * 2));
+		}
+		if(value) {
+			bits[id >> 6] |= 1L << id;
+		}
+		else {
+			bits[id >> 6] &= ~(1L << id);
+		}
+		return bits;
+	}
+
+	/* back to every tile blocking */
+	public void reset() {
+		blocking = new long[1];
+		overridden = new long[1];
+		tileCount = 0;
+	}
+
+	/* back to the rules the coverage of the tileset's tiles gives */
+	public void reset(TileSet tileset) {
+		tileCount = tileset.getTileCount();
+		blocking = new long[(tileCount >> 6) + 1];
+		overridden = new long[blocking.length];
+		for(int id = 0; id < tileCount; id++) {
+			if(tileset.getCoverage(id) >= BLOCKING_COVERAGE) {
+				blocking[id >> 6] |= 1L << id;
+			}
+		}
+	}
+
+}
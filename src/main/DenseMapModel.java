@@ -0,0 +1,274 @@
+package main;
+
+import java.util.Arrays;
+
+/* A map stored flat and row-major.
+   Tile ids are kept as unsigned shorts until an id above 65535 is placed, at
+   which point the layer widens to ints. Collision is one bit per cell.
+   Storage is allocated with spare capacity so that growing or shrinking the
+   map along its right or bottom edge only touches the cells on that edge. */
+public class DenseMapModel implements MapModel {
+
+	private static final int MAXIMUM_SHORT_ID = 0xFFFF;
+
+	private int columns;
+	private int rows;
+
+	// allocated size, the row stride is capacityColumns
+	private int capacityColumns;
+	private int capacityRows;
+
+	// exactly one of these holds the tile layer
+	private short[] shortTiles;
+	private int[] intTiles;
+
+	private long[] collision;
+
+	public DenseMapModel(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+
+		allocate(columns, rows, false);
+	}
+
+	private DenseMapModel(DenseMapModel other) {
+		columns = other.columns;
+		rows = other.rows;
+		capacityColumns = other.capacityColumns;
+		capacityRows = other.capacityRows;
+		shortTiles = other.shortTiles != null ? other.shortTiles.clone() : null;
+		intTiles = other.intTiles != null ? other.intTiles.clone() : null;
+		collision = other.collision.clone();
+	}
+
+	private void allocate(int capacityColumns, int capacityRows, boolean wide) {
+		this.capacityColumns = capacityColumns;
+		this.capacityRows = capacityRows;
+
+		int capacity = capacityColumns * capacityRows;
+		shortTiles = wide ? null : new short[capacity];
+		intTiles = wide ? new int[capacity] : null;
+		collision = new long[(capacity + 63) >>> 6];
+	}
+
+	@Override
+	public int getColumns() {
+		return columns;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getTile(int x, int y) {
+		int index = x + y * capacityColumns;
+		if(intTiles != null) {
+			return intTiles[index];
+		}
+		return shortTiles[index] & 0xFFFF;
+	}
+
+	@Override
+	public void setTile(int x, int y, int id) {
+		int index = x + y * capacityColumns;
+		if(intTiles != null) {
+			intTiles[index] = id;
+			return;
+		}
+		if(id < 0 || id > MAXIMUM_SHORT_ID) {
+			widen();
+			intTiles[index] = id;
+			return;
+		}
+		shortTiles[index] = (short)id;
+	}
+
+	private void widen() {
+		intTiles = new int[shortTiles.length];
+		for(int i = 0; i < shortTiles.length; i++) {
+			intTiles[i] = shortTiles[i] & 0xFFFF;
+		}
+		shortTiles = null;
+	}
+
+	@Override
+	public int getCollision(int x, int y) {
+		int index = x + y * capacityColumns;
+		return (int)(collision[index >>> 6] >>> index) & 1;
+	}
+
+	@Override
+	public void setCollision(int x, int y, int value) {
+		int index = x + y * capacityColumns;
+		if(value != 0) {
+			collision[index >>> 6] |= 1L << index;
+		}
+		else {
+			collision[index >>> 6] &= ~(1L << index);
+		}
+	}
+
+	@Override
+	public void getTileRow(int y, int[] row) {
+		int offset = y * capacityColumns;
+		if(intTiles != null) {
+			System.arraycopy(intTiles, offset, row, 0, columns);
+			return;
+		}
+		for(int x = 0; x < columns; x++) {
+			row[x] = shortTiles[offset + x] & 0xFFFF;
+		}
+	}
+
+	@Override
+	public void setTileRow(int y, int[] row) {
+		for(int x = 0; x < columns; x++) {
+			setTile(x, y, row[x]);
+		}
+	}
+
+	@Override
+	public void getTileColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			column[y] = getTile(x, y);
+		}
+	}
+
+	@Override
+	public void setTileColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			setTile(x, y, column[y]);
+		}
+	}
+
+	@Override
+	public void getCollisionRow(int y, int[] row) {
+		int offset = y * capacityColumns;
+		for(int x = 0; x < columns; x++) {
+			int index = offset + x;
+			row[x] = (int)(collision[index >>> 6] >>> index) & 1;
+		}
+	}
+
+	@Override
+	public void setCollisionRow(int y, int[] row) {
+		for(int x = 0; x < columns; x++) {
+			setCollision(x, y, row[x]);
+		}
+	}
+
+	@Override
+	public void getCollisionColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			column[y] = getCollision(x, y);
+		}
+	}
+
+	@Override
+	public void setCollisionColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			setCollision(x, y, column[y]);
+		}
+	}
+
+	@Override
+	public void clear() {
+		if(intTiles != null) {
+			Arrays.fill(intTiles, 0);
+		}
+		else {
+			Arrays.fill(shortTiles, (short)0);
+		}
+		Arrays.fill(collision, 0L);
+	}
+
+	/* growing or shrinking away from the top left corner within the current
+	   capacity only clears the newly exposed cells, anything else is done with a single copy */
+	@Override
+	public boolean resize(int columns, int rows, Anchor anchor) {
+		int offsetX = anchor.offsetX(this.columns, columns);
+		int offsetY = anchor.offsetY(this.rows, rows);
+
+		if(offsetX == 0 && offsetY == 0 && columns <= capacityColumns && rows <= capacityRows) {
+			// cells past the old edge may hold stale values from an earlier shrink
+			clearRegion(this.columns, 0, columns, Math.min(this.rows, rows));
+			clearRegion(0, this.rows, columns, rows);
+			this.columns = columns;
+			this.rows = rows;
+			return true;
+		}
+
+		int oldColumns = this.columns;
+		int oldRows = this.rows;
+		int oldStride = capacityColumns;
+		short[] oldShortTiles = shortTiles;
+		int[] oldIntTiles = intTiles;
+		long[] oldCollision = collision;
+
+		// grow by half again so repeated edge growth stays amortized
+		int newCapacityColumns = columns <= capacityColumns ? capacityColumns : Math.max(columns, capacityColumns + capacityColumns / 2);
+		int newCapacityRows = rows <= capacityRows ? capacityRows : Math.max(rows, capacityRows + capacityRows / 2);
+		allocate(newCapacityColumns, newCapacityRows, oldIntTiles != null);
+		this.columns = columns;
+		this.rows = rows;
+
+		int firstX = Math.max(0, -offsetX);
+		int lastX = Math.min(oldColumns, columns - offsetX);
+		int firstY = Math.max(0, -offsetY);
+		int lastY = Math.min(oldRows, rows - offsetY);
+		for(int y = firstY; y < lastY; y++) {
+			int from = firstX + y * oldStride;
+			int to = firstX + offsetX + (y + offsetY) * capacityColumns;
+			if(lastX > firstX) {
+				if(oldIntTiles != null) {
+					System.arraycopy(oldIntTiles, from, intTiles, to, lastX - firstX);
+				}
+				else {
+					System.arraycopy(oldShortTiles, from, shortTiles, to, lastX - firstX);
+				}
+			}
+			for(int x = firstX; x < lastX; x++) {
+				int index = x + y * oldStride;
+				if((oldCollision[index >>> 6] >>> index & 1) != 0) {
+					setCollision(x + offsetX, y + offsetY, 1);
+				}
+			}
+		}
+		return false;
+	}
+
+	/* a dense map can't rule out any region without scanning it */
+	@Override
+	public boolean hasData(int x, int y, int width, int height) {
+		return true;
+	}
+
+	@Override
+	public void forEachRegion(RegionVisitor visitor) {
+		visitor.visit(0, 0, columns, rows);
+	}
+
+	/* a straight copy of the arrays, a few milliseconds even at the largest dense size */
+	@Override
+	public MapModel snapshot() {
+		return new DenseMapModel(this);
+	}
+
+	private void clearRegion(int startX, int startY, int endX, int endY) {
+		for(int y = startY; y < endY; y++) {
+			for(int x = startX; x < endX; x++) {
+				int index = x + y * capacityColumns;
+				if(intTiles != null) {
+					intTiles[index] = 0;
+				}
+				else {
+					shortTiles[index] = 0;
+				}
+				collision[index >>> 6] &= ~(1L << index);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,370 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.Timer;
+
+/* Crash recovery for the map being edited.
+   Every cell change and resize is appended to a log as a small binary record.
+   Records collect in a buffer on the event thread and are handed to a single
+   writer thread about once a second. Once a log grows large, or the map is
+   replaced, a snapshot of the whole map is written in the binary map format
+   and a new log is started, so only the tail since the last snapshot ever
+   has to be replayed.
+
+   Snapshots and logs carry a generation number: snapshot-N holds the map as
+   it was when journal-N was started. Recovery loads the newest snapshot and
+   replays every log from its generation on. The tileset the map is drawn
+   with is noted alongside, so it can be loaded again. A clean exit deletes the lot. */
+public class EditJournal {
+
+	private static final int MAGIC = 0x544A524E;
+
+	private static final byte RECORD_TILE = 1;
+	private static final byte RECORD_COLLISION = 2;
+	private static final byte RECORD_RESIZE = 3;
+
+	// type, then x, y and value, or columns, rows and anchor for a resize
+	private static final int RECORD_SIZE = 13;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int FLUSH_INTERVAL = 1000;
+	private static final long COMPACT_SIZE = 8 * 1024 * 1024;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_EXTENSION = ".tmap";
+	private static final String LOG_PREFIX = "journal-";
+	private static final String LOG_EXTENSION = ".log";
+	private static final String TILESET_FILE = "tileset.properties";
+	private static final String BROKEN_PREFIX = "broken-";
+
+	private final MapPanel mapPanel;
+	private final Path directory;
+
+	// everything touching the files runs here, in order
+	private final ExecutorService writer;
+	private final Timer flushTimer;
+
+	// only used on the event thread
+	private ByteBuffer buffer;
+	private long generation;
+	private long logSize;
+
+	// only used on the writer thread
+	private FileChannel log;
+
+	// the tileset noted by the session that was recovered, if any
+	private File tilesetFile;
+	private int tileWidth;
+	private int tileHeight;
+
+	public EditJournal(MapPanel mapPanel, Path directory) throws IOException {
+		this.mapPanel = mapPanel;
+		this.directory = directory;
+
+		Files.createDirectories(directory);
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Edit journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flushTimer = new Timer(FLUSH_INTERVAL, e -> flush());
+	}
+
+	/* true if a session that didn't exit cleanly left a map behind */
+	public boolean canRecover() {
+		return !listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_EXTENSION).isEmpty();
+	}
+
+	/* load whatever was left behind by a session that didn't exit cleanly.
+	   call this before the journal is given to the map panel, so the replay isn't logged again.
+	   if it fails the map panel may hold part of the map, and the files should be moved aside */
+	public void recover() throws IOException {
+		List<Long> snapshots = listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_EXTENSION);
+		if(snapshots.isEmpty()) { return; }
+
+		long first = snapshots.get(snapshots.size() - 1);
+		try {
+			BinaryMapFormat.read(getPath(SNAPSHOT_PREFIX, first, SNAPSHOT_EXTENSION), mapPanel);
+			for(long log : listGenerations(LOG_PREFIX, LOG_EXTENSION)) {
+				if(log >= first) {
+					replay(getPath(LOG_PREFIX, log, LOG_EXTENSION));
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt edit journal", e);
+		}
+		generation = listGenerations(LOG_PREFIX, LOG_EXTENSION).stream().reduce(first, Math::max);
+		readTileset();
+	}
+
+	private void readTileset() throws IOException {
+		Path path = directory.resolve(TILESET_FILE);
+		if(!Files.exists(path)) { return; }
+
+		Properties properties = new Properties();
+		try(Reader reader = Files.newBufferedReader(path)) {
+			properties.load(reader);
+		}
+		try {
+			tilesetFile = new File(properties.getProperty("file"));
+			tileWidth = Integer.parseInt(properties.getProperty("tileWidth"));
+			tileHeight = Integer.parseInt(properties.getProperty("tileHeight"));
+		} catch (NullPointerException | NumberFormatException e) {
+			tilesetFile = null;
+			throw new IOException("Corrupt tileset in edit journal", e);
+		}
+	}
+
+	/* the tileset the recovered map was drawn with, null if none was noted */
+	public File getTilesetFile() {
+		return tilesetFile;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/* move the files left behind into a directory of their own, out of the way of this
+	   session, and return it. call this instead of starting on a journal that can't be recovered */
+	public Path moveAside() throws IOException {
+		Path aside = directory.resolve(BROKEN_PREFIX + System.currentTimeMillis());
+		Files.createDirectories(aside);
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+			for(Path file : files) {
+				Files.move(file, aside.resolve(file.getFileName()));
+			}
+		}
+		return aside;
+	}
+
+	private void replay(Path path) throws IOException {
+		ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+		// a log that was only just created may not have its header yet
+		if(records.remaining() < 4) { return; }
+		if(records.getInt() != MAGIC) {
+			throw new IOException("Not an edit journal: " + path);
+		}
+
+		// a crash can leave the last record half written, it is dropped
+		while(records.remaining() >= RECORD_SIZE) {
+			byte type = records.get();
+			int x = records.getInt();
+			int y = records.getInt();
+			int value = records.getInt();
+			boolean inside = x >= 0 && x < mapPanel.getColumns() && y >= 0 && y < mapPanel.getRows();
+			if(type == RECORD_TILE && inside && value >= 0) {
+				mapPanel.setTile(x, y, value);
+			}
+			else if(type == RECORD_COLLISION && inside && (value == 0 || value == 1)) {
+				mapPanel.setCollision(x, y, value);
+			}
+			else if(type == RECORD_RESIZE && value >= 0 && value < MapModel.Anchor.values().length) {
+				mapPanel.resize(x, y, MapModel.Anchor.values()[value]);
+			}
+			else {
+				throw new IOException("Corrupt edit journal: " + path);
+			}
+		}
+		mapPanel.repaint();
+	}
+
+	/* start logging, beginning with a snapshot of the map as it is now */
+	public void start() {
+		compact();
+		flushTimer.start();
+	}
+
+	public void tileChanged(int x, int y, int id) {
+		append(RECORD_TILE, x, y, id);
+	}
+
+	public void collisionChanged(int x, int y, int value) {
+		append(RECORD_COLLISION, x, y, value);
+	}
+
+	public void resized(int columns, int rows, MapModel.Anchor anchor) {
+		append(RECORD_RESIZE, columns, rows, anchor.ordinal());
+	}
+
+	/* note the tileset the map is drawn with, so a recovered map can be drawn again */
+	public void tilesetChanged(File file, int tileWidth, int tileHeight) {
+		Properties properties = new Properties();
+		properties.setProperty("file", file.getAbsolutePath());
+		properties.setProperty("tileWidth", Integer.toString(tileWidth));
+		properties.setProperty("tileHeight", Integer.toString(tileHeight));
+		writer.execute(() -> {
+			try(Writer out = Files.newBufferedWriter(directory.resolve(TILESET_FILE))) {
+				properties.store(out, null);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/* a new map makes the log meaningless, start again from a snapshot of it */
+	public void mapReplaced() {
+		buffer.clear();
+		compact();
+	}
+
+	private void append(byte type, int x, int y, int value) {
+		if(buffer.remaining() < RECORD_SIZE) {
+			flush();
+		}
+		buffer.put(type);
+		buffer.putInt(x);
+		buffer.putInt(y);
+		buffer.putInt(value);
+	}
+
+	/* hand the buffered records to the writer thread, and start a new log if this one has grown too long */
+	private void flush() {
+		writeBuffered();
+		if(logSize > COMPACT_SIZE) {
+			compact();
+		}
+	}
+
+	/* hand the buffered records to the writer thread */
+	private void writeBuffered() {
+		if(buffer.position() == 0) { return; }
+
+		buffer.flip();
+		ByteBuffer records = ByteBuffer.allocate(buffer.remaining());
+		records.put(buffer).flip();
+		buffer.clear();
+		logSize += records.remaining();
+
+		writer.execute(() -> {
+			try {
+				if(log != null) {
+					while(records.hasRemaining()) {
+						log.write(records);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/* start a new log and write a snapshot of the map as it stands at the start of it */
+	private void compact() {
+		// not flush, which could start compacting all over again
+		writeBuffered();
+
+		long next = ++generation;
+		MapModel snapshot = mapPanel.getMap().snapshot();
+		int tileWidth = mapPanel.getTileWidth();
+		int tileHeight = mapPanel.getTileHeight();
+		byte encoding = snapshot instanceof SparseMapModel ? BinaryMapFormat.ENCODING_RLE : BinaryMapFormat.ENCODING_RAW;
+		logSize = 0;
+
+		writer.execute(() -> {
+			try {
+				if(log != null) {
+					log.close();
+				}
+				log = FileChannel.open(getPath(LOG_PREFIX, next, LOG_EXTENSION), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+				header.flip();
+				log.write(header);
+
+				Path path = getPath(SNAPSHOT_PREFIX, next, SNAPSHOT_EXTENSION);
+				Path partPath = path.resolveSibling(path.getFileName() + ".part");
+				BinaryMapFormat.write(partPath, snapshot, tileWidth, tileHeight, encoding, null);
+				Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+
+				// only now is everything older covered by the new snapshot
+				deleteBefore(next);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/* a clean exit, nothing needs recovering next time */
+	public void close() {
+		flushTimer.stop();
+		buffer.clear();
+		writer.execute(() -> {
+			try {
+				if(log != null) {
+					log.close();
+					log = null;
+				}
+				deleteBefore(Long.MAX_VALUE);
+				Files.deleteIfExists(directory.resolve(TILESET_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void deleteBefore(long generation) throws IOException {
+		for(long old : listGenerations(LOG_PREFIX, LOG_EXTENSION)) {
+			if(old < generation) {
+				Files.deleteIfExists(getPath(LOG_PREFIX, old, LOG_EXTENSION));
+			}
+		}
+		for(long old : listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_EXTENSION)) {
+			if(old < generation) {
+				Files.deleteIfExists(getPath(SNAPSHOT_PREFIX, old, SNAPSHOT_EXTENSION));
+			}
+		}
+	}
+
+	private Path getPath(String prefix, long generation, String extension) {
+		return directory.resolve(prefix + generation + extension);
+	}
+
+	/* generation numbers of the files of one kind, oldest first */
+	private List<Long> listGenerations(String prefix, String extension) {
+		List<Long> generations = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + extension)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - extension.length())));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+}
@@ -0,0 +1,325 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* A map archive made of independently deflated 64x64 cell chunks.
+
+   header, big-endian:
+       int    magic "TMAR"
+       short  version
+       short  chunk size in cells
+       int    columns
+       int    rows
+       int    tile width
+       int    tile height
+       int    number of chunks with something in them
+
+   then an index with an entry for each of those chunks, so a mostly empty map
+   has a small index:
+       int    chunk number, row by row across the chunk grid
+       long   offset of the chunk in the file
+       int    compressed length
+
+   and then the chunk data. Unpacked, a chunk is its tile ids as ints, row
+   by row, followed by one long of collision bits per row. Chunks are
+   compressed in parallel when writing, and the index lets any one chunk be
+   read back on its own. */
+public class MapArchive {
+
+	private static final int MAGIC = 0x544D4152;
+	private static final short VERSION = 2;
+
+	private static final int HEADER_SIZE = 28;
+	private static final int INDEX_ENTRY_SIZE = 16;
+
+	private static final int CHUNK_SHIFT = 6;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+	private static final int CHUNK_BYTES = CHUNK_CELLS * 4 + CHUNK_SIZE * 8;
+
+	private final FileChannel channel;
+
+	private int columns;
+	private int rows;
+	private int tileWidth;
+	private int tileHeight;
+
+	private int chunkColumns;
+	private int chunkRows;
+	// for every chunk, 0 for one with nothing in it
+	private long[] offsets;
+	private int[] lengths;
+
+	/* open an archive for reading, only the header and index are read here */
+	public MapArchive(FileChannel channel) throws IOException {
+		this.channel = channel;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		if(header.getInt() != MAGIC) {
+			throw new IOException("Not a map archive");
+		}
+		if(header.getShort() != VERSION || header.getShort() != CHUNK_SIZE) {
+			throw new IOException("Unsupported map archive version");
+		}
+		columns = header.getInt();
+		rows = header.getInt();
+		tileWidth = header.getInt();
+		tileHeight = header.getInt();
+		int stored = header.getInt();
+		if(!MapPanel.isValidSize(columns, rows)) {
+			throw new IOException("Invalid map size " + columns + "x" + rows);
+		}
+		if(columns <= 0 || rows <= 0 || tileWidth <= 0 || tileHeight <= 0) {
+			throw new IOException("Corrupt map archive header");
+		}
+
+		chunkColumns = (columns + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		chunkRows = (rows + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		int chunks = chunkColumns * chunkRows;
+		if(stored < 0 || stored > chunks) {
+			throw new IOException("Corrupt map archive header");
+		}
+		offsets = new long[chunks];
+		lengths = new int[chunks];
+
+		long size = channel.size();
+		ByteBuffer index = ByteBuffer.allocate(stored * INDEX_ENTRY_SIZE);
+		readFully(index, HEADER_SIZE);
+		for(int i = 0; i < stored; i++) {
+			int chunk = index.getInt();
+			long offset = index.getLong();
+			int length = index.getInt();
+			if(chunk < 0 || chunk >= chunks || lengths[chunk] != 0 || length <= 0 || offset < 0 || offset + length > size) {
+				throw new IOException("Corrupt map archive index");
+			}
+			offsets[chunk] = offset;
+			lengths[chunk] = length;
+		}
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/* unpack a single chunk into arrays of CHUNK_SIZE * CHUNK_SIZE cells indexed
+	   x + y * CHUNK_SIZE. returns false, leaving the arrays alone, for an empty chunk */
+	public boolean readChunk(int chunkX, int chunkY, int[] tiles, int[] collision) throws IOException {
+		int chunk = chunkX + chunkY * chunkColumns;
+		if(lengths[chunk] == 0) {
+			return false;
+		}
+
+		ByteBuffer compressed = ByteBuffer.allocate(lengths[chunk]);
+		readFully(compressed, offsets[chunk]);
+		// one byte spare so that a chunk unpacking too large is caught
+		byte[] data = new byte[CHUNK_BYTES + 1];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array());
+			if(inflater.inflate(data) != CHUNK_BYTES || !inflater.finished()) {
+				throw new IOException("Corrupt chunk " + chunkX + "," + chunkY + " in map archive");
+			}
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupt chunk " + chunkX + "," + chunkY + " in map archive", e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		for(int i = 0; i < CHUNK_CELLS; i++) {
+			tiles[i] = buffer.getInt();
+		}
+		for(int y = 0; y < CHUNK_SIZE; y++) {
+			long bits = buffer.getLong();
+			for(int x = 0; x < CHUNK_SIZE; x++) {
+				collision[x + y * CHUNK_SIZE] = (int)(bits >>> x) & 1;
+			}
+		}
+		return true;
+	}
+
+	/* unpack the whole archive, chunks are inflated in parallel */
+	public MapModel readMap() throws IOException {
+		MapModel map = MapPanel.createModel(columns, rows);
+		try {
+			IntStream.range(0, lengths.length).parallel().filter(chunk -> lengths[chunk] != 0).forEach(chunk -> {
+				int chunkX = chunk % chunkColumns;
+				int chunkY = chunk / chunkColumns;
+				int[] tiles = new int[CHUNK_CELLS];
+				int[] collision = new int[CHUNK_CELLS];
+				try {
+					readChunk(chunkX, chunkY, tiles, collision);
+				}
+				catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				// the models are not thread safe
+				synchronized(map) {
+					int startX = chunkX << CHUNK_SHIFT;
+					int startY = chunkY << CHUNK_SHIFT;
+					for(int y = 0; y < Math.min(CHUNK_SIZE, rows - startY); y++) {
+						for(int x = 0; x < Math.min(CHUNK_SIZE, columns - startX); x++) {
+							int i = x + y * CHUNK_SIZE;
+							if(tiles[i] != 0) {
+								map.setTile(startX + x, startY + y, tiles[i]);
+							}
+							if(collision[i] != 0) {
+								map.setCollision(startX + x, startY + y, 1);
+							}
+						}
+					}
+				}
+			});
+		}
+		catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return map;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Map archive is truncated");
+			}
+		}
+		buffer.flip();
+	}
+
+	/* write a whole map, compressing its chunks in parallel on the common fork/join pool.
+	   the listener, which may be null, is told as chunks finish, from whichever thread compressed them */
+	public static void write(FileChannel channel, MapModel map, int tileWidth, int tileHeight, ProgressListener listener) throws IOException {
+		int columns = map.getColumns();
+		int rows = map.getRows();
+		int chunkColumns = (columns + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		int chunkRows = (rows + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		int chunks = chunkColumns * chunkRows;
+
+		// reading the model from several threads is safe as long as nothing writes to it
+		byte[][] compressed = new byte[chunks][];
+		AtomicLong done = new AtomicLong();
+		try {
+			IntStream.range(0, chunks).parallel().forEach(chunk -> {
+				compressed[chunk] = compressChunk(map, (chunk % chunkColumns) << CHUNK_SHIFT, (chunk / chunkColumns) << CHUNK_SHIFT);
+				if(listener != null && !listener.progress(done.incrementAndGet(), chunks)) {
+					throw new UncheckedIOException(new InterruptedIOException("Save cancelled"));
+				}
+			});
+		}
+		catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		int stored = 0;
+		for(byte[] data : compressed) {
+			if(data != null) {
+				stored++;
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + stored * INDEX_ENTRY_SIZE);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short)CHUNK_SIZE);
+		header.putInt(columns);
+		header.putInt(rows);
+		header.putInt(tileWidth);
+		header.putInt(tileHeight);
+		header.putInt(stored);
+		long offset = header.capacity();
+		for(int chunk = 0; chunk < chunks; chunk++) {
+			if(compressed[chunk] == null) { continue; }
+			header.putInt(chunk);
+			header.putLong(offset);
+			header.putInt(compressed[chunk].length);
+			offset += compressed[chunk].length;
+		}
+		header.flip();
+
+		channel.truncate(0);
+		writeFully(channel, header);
+		for(byte[] data : compressed) {
+			if(data != null) {
+				writeFully(channel, ByteBuffer.wrap(data));
+			}
+		}
+	}
+
+	/* the deflated contents of one chunk, or null if it holds nothing */
+	private static byte[] compressChunk(MapModel map, int startX, int startY) {
+		int width = Math.min(CHUNK_SIZE, map.getColumns() - startX);
+		int height = Math.min(CHUNK_SIZE, map.getRows() - startY);
+		if(!map.hasData(startX, startY, width, height)) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+		long[] collision = new long[CHUNK_SIZE];
+		boolean empty = true;
+		for(int y = 0; y < CHUNK_SIZE; y++) {
+			for(int x = 0; x < CHUNK_SIZE; x++) {
+				int tile = 0;
+				if(x < width && y < height) {
+					tile = map.getTile(startX + x, startY + y);
+					collision[y] |= (long)map.getCollision(startX + x, startY + y) << x;
+				}
+				buffer.putInt(tile);
+				empty &= tile == 0;
+			}
+			empty &= collision[y] == 0;
+		}
+		if(empty) {
+			return null;
+		}
+		for(long bits : collision) {
+			buffer.putLong(bits);
+		}
+
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(buffer.array());
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(CHUNK_BYTES / 8);
+			byte[] block = new byte[4096];
+			while(!deflater.finished()) {
+				out.write(block, 0, deflater.deflate(block));
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
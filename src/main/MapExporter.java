@@ -0,0 +1,125 @@
+package main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/* Streams a map out in the plain text format, a block of tile ids followed by
+   a block of collision values, each headed by the column and row counts:
+
+       columns
+       rows
+       id id id ...
+       ...
+
+   Numbers are formatted straight into a reusable byte buffer, nothing is
+   allocated per cell. */
+public class MapExporter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// longest int is a sign and ten digits, plus a separator
+	private static final int MAXIMUM_NUMBER_LENGTH = 12;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final byte[] digits;
+
+	private ProgressListener listener;
+
+	public MapExporter(WritableByteChannel channel) {
+		this.channel = channel;
+
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		digits = new byte[MAXIMUM_NUMBER_LENGTH];
+	}
+
+	/* told after every row, the total is both layers' rows together */
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/* the output has every row ending in a space and a newline except the very
+	   last one, which matches what the old trimmed string export produced */
+	public void writeText(MapModel map) throws IOException {
+		int columns = map.getColumns();
+		int rows = map.getRows();
+		int[] row = new int[columns];
+
+		writeHeader(columns, rows);
+		for(int y = 0; y < rows; y++) {
+			map.getTileRow(y, row);
+			writeRow(row, columns, false);
+			reportProgress(y + 1, rows * 2L);
+		}
+
+		writeHeader(columns, rows);
+		for(int y = 0; y < rows; y++) {
+			map.getCollisionRow(y, row);
+			writeRow(row, columns, y == rows - 1);
+			reportProgress(rows + y + 1, rows * 2L);
+		}
+		flush();
+	}
+
+	private void reportProgress(long done, long total) throws IOException {
+		if(listener != null && !listener.progress(done, total)) {
+			throw new InterruptedIOException("Export cancelled");
+		}
+	}
+
+	private void writeHeader(int columns, int rows) throws IOException {
+		writeInt(columns);
+		put((byte)'\n');
+		writeInt(rows);
+		put((byte)'\n');
+	}
+
+	private void writeRow(int[] row, int columns, boolean last) throws IOException {
+		for(int x = 0; x < columns; x++) {
+			writeInt(row[x]);
+			if(!last || x < columns - 1) {
+				buffer.put((byte)' ');
+			}
+		}
+		if(!last) {
+			put((byte)'\n');
+		}
+	}
+
+	private void writeInt(int value) throws IOException {
+		if(buffer.remaining() < MAXIMUM_NUMBER_LENGTH) {
+			flush();
+		}
+
+		// work with the negative value so Integer.MIN_VALUE needs no special case
+		boolean negative = value < 0;
+		int remaining = negative ? value : -value;
+		int start = digits.length;
+		do {
+			digits[--start] = (byte)('0' - remaining % 10);
+			remaining /= 10;
+		} while(remaining != 0);
+		if(negative) {
+			digits[--start] = '-';
+		}
+		buffer.put(digits, start, digits.length - start);
+	}
+
+	private void put(byte value) throws IOException {
+		if(!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put(value);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -3,12 +3,17 @@ package main;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.GridLayout;
-import java.awt.image.BufferedImage;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
-import javax.imageio.ImageIO;
 import javax.swing.ButtonGroup;
 import javax.swing.ButtonModel;
 import javax.swing.ImageIcon;
@@ -28,6 +33,7 @@ import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
+import javax.swing.KeyStroke;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.border.LineBorder;
 import javax.swing.text.DefaultFormatter;
@@ -35,9 +41,16 @@ import javax.swing.text.DefaultFormatter;
 public class MapFrame extends JFrame {
 
 	private static final long serialVersionUID = 1L;
+	
+	private static final String BINARY_MAP_EXTENSION = ".tmap";
+	private static final String MAP_ARCHIVE_EXTENSION = ".tmar";
+	
+	private static final String JOURNAL_DIRECTORY = ".mapmaker/journal";
 
 	private MapPanel mapPanel;
 	private TileSet tileset;
+	private Minimap minimap;
+	private EditJournal journal;
 	
 	private JMenuBar menubar;
 	private JToolBar toolbar;
@@ -53,6 +66,9 @@ public class MapFrame extends JFrame {
 		
 		mapPanel = new MapPanel();
 		tileset = new TileSet(mapPanel);
+		mapPanel.setTileSet(tileset);
+		minimap = new Minimap(mapPanel);
+		mapPanel.setMinimap(minimap);
 		
 		menubar = new JMenuBar();
 		toolbar = new JToolBar();
@@ -60,15 +76,86 @@ public class MapFrame extends JFrame {
 		JScrollPane scrollpane1 = new JScrollPane(mapPanel);
 		JScrollPane scrollpane2 = new JScrollPane(tileset);
 		
+		scrollpane1.getViewport().addChangeListener(e -> minimap.repaint());
+		
+		JPanel sidePanel = new JPanel(new BorderLayout());
+		sidePanel.add(scrollpane2, BorderLayout.CENTER);
+		sidePanel.add(minimap, BorderLayout.SOUTH);
+		
 		contentPane = new JPanel(new BorderLayout());
 		contentPane.add(scrollpane1, BorderLayout.CENTER);
-		contentPane.add(scrollpane2, BorderLayout.EAST);
+		contentPane.add(sidePanel, BorderLayout.EAST);
 		setContentPane(contentPane);
 		
 		initialise();
 
 		pack();
 		setLocationRelativeTo(null);
+		
+		startJournal();
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				closeJournal();
+			}
+		});
+	}
+	
+	/* offer to bring back the map from a session that crashed, then log this one */
+	private void startJournal() {
+		try {
+			journal = new EditJournal(mapPanel, Paths.get(System.getProperty("user.home"), JOURNAL_DIRECTORY));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if(journal.canRecover()) {
+			int answer = JOptionPane.showConfirmDialog(this, "The last session did not exit cleanly. Recover the map it was editing?",
+					"Recover Map", JOptionPane.YES_NO_OPTION);
+			if(answer == JOptionPane.YES_OPTION) {
+				recoverJournal();
+			}
+		}
+		mapPanel.setJournal(journal);
+		journal.start();
+	}
+	
+	private void recoverJournal() {
+		int columns = mapPanel.getColumns();
+		int rows = mapPanel.getRows();
+		int tileWidth = mapPanel.getTileWidth();
+		int tileHeight = mapPanel.getTileHeight();
+		try {
+			journal.recover();
+		} catch (IOException e) {
+			e.printStackTrace();
+			// put back the empty map rather than leave part of the recovered one
+			mapPanel.loadNewMap(columns, rows, tileWidth, tileHeight);
+			String message = "Could not recover the last session: " + e.getMessage();
+			try {
+				message += "\nIts files were moved to " + journal.moveAside();
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+			JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		mapPanel.setCanDraw(true);
+		
+		// the map is drawn with the tileset it was made with, if that can still be found
+		File tilesetFile = journal.getTilesetFile();
+		if(tilesetFile != null) {
+			loadTileset(tilesetFile, journal.getTileWidth(), journal.getTileHeight(), null);
+		}
+	}
+	
+	/* a clean exit, the journal is no longer needed */
+	private void closeJournal() {
+		if(journal != null) {
+			mapPanel.setJournal(null);
+			journal.close();
+			journal = null;
+		}
 	}
 	
 	public void initialise() {
@@ -80,19 +167,56 @@ public class MapFrame extends JFrame {
 			ltd.setAlwaysOnTop(true);
 			ltd.setVisible(true);
 		});
+		JMenuItem fileOpen = new JMenuItem("Open Map...");
+		fileOpen.addActionListener(e -> {
+			openBinaryMap();
+		});
+		JMenuItem fileOpenText = new JMenuItem("Open Text Map...");
+		fileOpenText.addActionListener(e -> {
+			openTextMap();
+		});
+		JMenuItem fileOpenArchive = new JMenuItem("Open Map Archive...");
+		fileOpenArchive.addActionListener(e -> {
+			openArchive();
+		});
+		JMenuItem fileSave = new JMenuItem("Save Map...");
+		fileSave.addActionListener(e -> {
+			saveBinaryMap();
+		});
 		JMenuItem fileClose = new JMenuItem("Close");
 		fileClose.addActionListener(e -> {
 			int result = JOptionPane.showConfirmDialog(this, "Are you sure you want to exit?", "Exit", 
 						 JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
 			if(result == JOptionPane.YES_OPTION) {
+				closeJournal();
 				System.exit(0);
 			}
 		});
 		fileMenu.add(fileNew);
+		fileMenu.add(fileOpen);
+		fileMenu.add(fileOpenText);
+		fileMenu.add(fileOpenArchive);
+		fileMenu.add(fileSave);
 		fileMenu.addSeparator();
 		fileMenu.add(fileClose);		
 		menubar.add(fileMenu);	
 		
+		/* setup edit menu and add action listeners */
+		JMenu editMenu = new JMenu("Edit");
+		JMenuItem undo = new JMenuItem("Undo");
+		undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+		undo.addActionListener(e -> {
+			mapPanel.undo();
+		});
+		JMenuItem redo = new JMenuItem("Redo");
+		redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+		redo.addActionListener(e -> {
+			mapPanel.redo();
+		});
+		editMenu.add(undo);
+		editMenu.add(redo);
+		menubar.add(editMenu);
+		
 		/* setup view menu and add action listeners */
 		JMenu viewMenu = new JMenu("View");
 		JCheckBoxMenuItem viewTileLayer = new JCheckBoxMenuItem("View Tile Layer");
@@ -115,6 +239,26 @@ public class MapFrame extends JFrame {
 		viewMenu.add(viewCollisionLayer);
 		
 		viewMenu.add(viewGrid);
+		
+		JMenuItem zoomIn = new JMenuItem("Zoom In");
+		zoomIn.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK));
+		zoomIn.addActionListener(e -> {
+			mapPanel.zoomIn();
+		});
+		JMenuItem zoomOut = new JMenuItem("Zoom Out");
+		zoomOut.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK));
+		zoomOut.addActionListener(e -> {
+			mapPanel.zoomOut();
+		});
+		JMenuItem actualSize = new JMenuItem("Actual Size");
+		actualSize.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, InputEvent.CTRL_DOWN_MASK));
+		actualSize.addActionListener(e -> {
+			mapPanel.resetZoom();
+		});
+		viewMenu.addSeparator();
+		viewMenu.add(zoomIn);
+		viewMenu.add(zoomOut);
+		viewMenu.add(actualSize);
 		menubar.add(viewMenu);
 		
 		setJMenuBar(menubar);
@@ -148,6 +292,11 @@ public class MapFrame extends JFrame {
 		export.addActionListener(e -> {
 			saveToFile();
 		});
+		JButton exportArchive = new JButton("Export Archive");
+		exportArchive.setFocusable(false);
+		exportArchive.addActionListener(e -> {
+			saveArchive();
+		});
 		
 		JButton autofill = new JButton("Auto Collision Layer");
 		autofill.setFocusable(false);
@@ -168,6 +317,20 @@ public class MapFrame extends JFrame {
 		drawCollisionLayer.addActionListener(e -> {
 			mapPanel.drawCollisionLayer();
 		});
+		/* one button per tool, exactly one of them is always selected */
+		ButtonGroup toolGroup = new ButtonGroup();
+		JToggleButton[] toolButtons = new JToggleButton[MapPanel.Tool.values().length];
+		for(MapPanel.Tool tool : MapPanel.Tool.values()) {
+			String name = tool.name();
+			JToggleButton toolButton = new JToggleButton(Character.toUpperCase(name.charAt(0)) + name.substring(1));
+			toolButton.setFocusable(false);
+			toolButton.setSelected(tool == MapPanel.Tool.brush);
+			toolButton.addActionListener(e -> {
+				mapPanel.setTool(tool);
+			});
+			toolGroup.add(toolButton);
+			toolButtons[tool.ordinal()] = toolButton;
+		}
 		MyButtonGroup bg = new MyButtonGroup();
 		bg.add(drawTileLayer);
 		bg.add(drawCollisionLayer);
@@ -178,11 +341,16 @@ public class MapFrame extends JFrame {
 		toolbar.add(removeRowButton);
 		toolbar.addSeparator();
 		toolbar.add(export);
+		toolbar.add(exportArchive);
 		toolbar.addSeparator();
 		toolbar.add(autofill);
 		toolbar.addSeparator();
 		toolbar.add(drawTileLayer);
 		toolbar.add(drawCollisionLayer);
+		toolbar.addSeparator();
+		for(JToggleButton toolButton : toolButtons) {
+			toolbar.add(toolButton);
+		}
 		add(toolbar, BorderLayout.NORTH);
 		
 		/* setup frame icon */
@@ -190,27 +358,118 @@ public class MapFrame extends JFrame {
 		setIconImage(icon.getImage());
 	}
 	
-	/* save map to file */
+	/* save map to file. the export runs in the background from a snapshot so painting can carry on */
 	private void saveToFile() {
-		String map = mapPanel.mapToString();
-		String collision = mapPanel.collisionToString();
-		
 		JFileChooser fchooser = new JFileChooser();
 		int result = fchooser.showSaveDialog(this);
+		if(result == JFileChooser.APPROVE_OPTION) {
+			Path path = Paths.get(fchooser.getSelectedFile() + ".txt");
+			MapModel snapshot = mapPanel.getMap().snapshot();
+			new SaveWorker(this, path, (partPath, listener) -> {
+				try(FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					MapExporter exporter = new MapExporter(channel);
+					exporter.setProgressListener(listener);
+					exporter.writeText(snapshot);
+				}
+			}).execute();
+		}
+	}
+	
+	/* save map as a chunked, compressed archive */
+	private void saveArchive() {
+		JFileChooser fchooser = new JFileChooser();
+		int result = fchooser.showSaveDialog(this);
+		if(result == JFileChooser.APPROVE_OPTION) {
+			Path path = Paths.get(fchooser.getSelectedFile() + MAP_ARCHIVE_EXTENSION);
+			MapModel snapshot = mapPanel.getMap().snapshot();
+			int tileWidth = mapPanel.getTileWidth();
+			int tileHeight = mapPanel.getTileHeight();
+			new SaveWorker(this, path, (partPath, listener) -> {
+				try(FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					MapArchive.write(channel, snapshot, tileWidth, tileHeight, listener);
+				}
+			}).execute();
+		}
+	}
+	
+	/* open a map archive */
+	private void openArchive() {
+		JFileChooser fchooser = new JFileChooser();
+		int result = fchooser.showOpenDialog(this);
+		if(result == JFileChooser.APPROVE_OPTION) {
+			try(FileChannel channel = FileChannel.open(fchooser.getSelectedFile().toPath(), StandardOpenOption.READ)) {
+				MapArchive archive = new MapArchive(channel);
+				mapPanel.loadMap(archive.readMap(), archive.getTileWidth(), archive.getTileHeight());
+				mapPanel.setCanDraw(true);
+			} catch (IOException e) {
+				e.printStackTrace();
+				JOptionPane.showMessageDialog(this, "Could not open archive: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
+	/* save map in the binary format, run-length encoded when it's sparse and mostly empty */
+	private void saveBinaryMap() {
+		JFileChooser fchooser = new JFileChooser();
+		int result = fchooser.showSaveDialog(this);
+		if(result == JFileChooser.APPROVE_OPTION) {
+			Path path = Paths.get(fchooser.getSelectedFile() + BINARY_MAP_EXTENSION);
+			byte encoding = mapPanel.getMap() instanceof SparseMapModel ? BinaryMapFormat.ENCODING_RLE : BinaryMapFormat.ENCODING_RAW;
+			MapModel snapshot = mapPanel.getMap().snapshot();
+			int tileWidth = mapPanel.getTileWidth();
+			int tileHeight = mapPanel.getTileHeight();
+			new SaveWorker(this, path, (partPath, listener) -> {
+				BinaryMapFormat.write(partPath, snapshot, tileWidth, tileHeight, encoding, listener);
+			}).execute();
+		}
+	}
+	
+	/* open a map saved in the binary format */
+	private void openBinaryMap() {
+		JFileChooser fchooser = new JFileChooser();
+		int result = fchooser.showOpenDialog(this);
 		if(result == JFileChooser.APPROVE_OPTION) {
 			try {
-				FileWriter fw = new FileWriter(fchooser.getSelectedFile() + ".txt");
-				fw.write((map + collision).trim());
-				fw.close();
+				BinaryMapFormat.read(fchooser.getSelectedFile().toPath(), mapPanel);
+				mapPanel.setCanDraw(true);
 			} catch (IOException e) {
 				e.printStackTrace();
+				JOptionPane.showMessageDialog(this, "Could not open map: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
+	/* open a map exported as text, the text format has no tile size so the current one is kept */
+	private void openTextMap() {
+		JFileChooser fchooser = new JFileChooser();
+		int result = fchooser.showOpenDialog(this);
+		if(result == JFileChooser.APPROVE_OPTION) {
+			try(FileChannel channel = FileChannel.open(fchooser.getSelectedFile().toPath(), StandardOpenOption.READ)) {
+				MapModel map = new MapImporter(channel).readText();
+				mapPanel.loadMap(map, mapPanel.getTileWidth(), mapPanel.getTileHeight());
+				mapPanel.setCanDraw(true);
+			} catch (IOException e) {
+				e.printStackTrace();
+				JOptionPane.showMessageDialog(this, "Could not open map: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
 			}
 		}
 	}
 		
-	/* load tileset */
-	public void loadTileset(int tileWidth, int tileHeight, BufferedImage tileset) {
-		this.tileset.loadTileset(tileWidth, tileHeight, tileset);
+	/* load a tileset in the background, then start a new map with it */
+	public void loadTileset(File file, int tileWidth, int tileHeight, int columns, int rows) {
+		loadTileset(file, tileWidth, tileHeight, () -> loadNewMap(columns, rows, tileWidth, tileHeight));
+	}
+	
+	/* load a tileset in the background, then run onLoaded, which may be null */
+	private void loadTileset(File file, int tileWidth, int tileHeight, Runnable onLoaded) {
+		new TilesetLoader(this, file, tileWidth, tileHeight, tileset, () -> {
+			if(journal != null) {
+				journal.tilesetChanged(file, tileWidth, tileHeight);
+			}
+			if(onLoaded != null) {
+				onLoaded.run();
+			}
+		}).execute();
 	}
 	
 	/* load a new empty map */
@@ -271,12 +530,12 @@ class LoadTilesetDialog extends JDialog {
 		DefaultFormatter formatter2 = (DefaultFormatter) jsEditor2.getTextField().getFormatter();
 		formatter2.setAllowsInvalid(false);
 		
-		JSpinner spinnerMapWidth = new JSpinner(new SpinnerNumberModel(24, 1, 9999, 1));
+		JSpinner spinnerMapWidth = new JSpinner(new SpinnerNumberModel(24, 1, 65536, 1));
 		JSpinner.NumberEditor jsEditor3 = (JSpinner.NumberEditor)spinnerMapWidth.getEditor();
 		DefaultFormatter formatter3 = (DefaultFormatter) jsEditor3.getTextField().getFormatter();
 		formatter3.setAllowsInvalid(false);
 		
-		JSpinner spinnerMapHeight = new JSpinner(new SpinnerNumberModel(18, 1, 9999, 1));
+		JSpinner spinnerMapHeight = new JSpinner(new SpinnerNumberModel(18, 1, 65536, 1));
 		JSpinner.NumberEditor jsEditor4 = (JSpinner.NumberEditor)spinnerMapHeight.getEditor();
 		DefaultFormatter formatter4 = (DefaultFormatter) jsEditor4.getTextField().getFormatter();
 		formatter4.setAllowsInvalid(false);
@@ -296,11 +555,13 @@ class LoadTilesetDialog extends JDialog {
 				int rows = Integer.parseInt(spinnerMapHeight.getValue().toString());;
 				int tileWidth = Integer.parseInt(spinnerWidth.getValue().toString());;
 				int tileHeight = Integer.parseInt(spinnerHeight.getValue().toString());;
-				BufferedImage tileset = ImageIO.read(new File(pathField.getText()));
+				File file = new File(pathField.getText());
+				if(!file.isFile()) {
+					throw new IOException("No such file: " + file);
+				}
 				
-				mapFrame.loadTileset(tileWidth, tileHeight, tileset);
-				mapFrame.loadNewMap(columns, rows, tileWidth, tileHeight);
 				dispose();
+				mapFrame.loadTileset(file, tileWidth, tileHeight, columns, rows);
 				
 			} catch (Exception e1) {
 				JOptionPane.showMessageDialog(this, "Please check path and/or values","Error", JOptionPane.ERROR_MESSAGE);				
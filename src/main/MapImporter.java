@@ -0,0 +1,151 @@
+package main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/* Reads back the plain text format written by MapExporter.
+   The file is mapped rather than read into strings. One pass over the bytes
+   finds where each row starts, after which bands of rows are parsed on
+   separate threads and copied into the model one band at a time. */
+public class MapImporter {
+
+	// cells parsed by one task before its values are copied into the model
+	private static final int BAND_CELLS = 64 * 1024;
+
+	private final FileChannel channel;
+
+	private ByteBuffer buffer;
+	private int position;
+
+	public MapImporter(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public MapModel readText() throws IOException {
+		if(channel.size() > Integer.MAX_VALUE) {
+			throw new IOException("Text map is too large to open, save it in the binary format instead");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		position = 0;
+
+		int columns = readHeaderInt();
+		int rows = readHeaderInt();
+		if(!MapPanel.isValidSize(columns, rows)) {
+			throw new IOException("Invalid map size " + columns + "x" + rows);
+		}
+
+		// tile rows come first and collision rows follow the second header
+		int[] lineStarts = new int[rows * 2];
+		int[] lineEnds = new int[rows * 2];
+		for(int y = 0; y < rows; y++) {
+			lineStarts[y] = position;
+			skipLine();
+			lineEnds[y] = position;
+		}
+		if(readHeaderInt() != columns || readHeaderInt() != rows) {
+			throw new IOException("Collision layer size does not match the tile layer");
+		}
+		for(int y = 0; y < rows; y++) {
+			lineStarts[rows + y] = position;
+			skipLine();
+			lineEnds[rows + y] = position;
+		}
+
+		MapModel map = MapPanel.createModel(columns, rows);
+		int bandRows = Math.max(1, BAND_CELLS / columns);
+		int bands = (rows * 2 + bandRows - 1) / bandRows;
+		try {
+			IntStream.range(0, bands).parallel().forEach(band -> {
+				int first = band * bandRows;
+				int last = Math.min(rows * 2, first + bandRows);
+				int[] values = new int[(last - first) * columns];
+				try {
+					for(int line = first; line < last; line++) {
+						parseLine(lineStarts[line], lineEnds[line], values, (line - first) * columns, columns, line % rows);
+					}
+				}
+				catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				// the models are not thread safe, the copy is cheap next to the parsing
+				synchronized(map) {
+					for(int line = first; line < last; line++) {
+						int y = line % rows;
+						int offset = (line - first) * columns;
+						for(int x = 0; x < columns; x++) {
+							int value = values[offset + x];
+							if(value == 0) { continue; }
+							if(line < rows) {
+								map.setTile(x, y, value);
+							}
+							else {
+								map.setCollision(x, y, 1);
+							}
+						}
+					}
+				}
+			});
+		}
+		catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return map;
+	}
+
+	private int readHeaderInt() throws IOException {
+		int start = position;
+		skipLine();
+		int[] value = new int[1];
+		parseLine(start, position, value, 0, 1, -1);
+		return value[0];
+	}
+
+	/* move past the next newline, or to the end of the file */
+	private void skipLine() throws IOException {
+		int limit = buffer.limit();
+		if(position >= limit) {
+			throw new IOException("Text map ends early");
+		}
+		while(position < limit && buffer.get(position++) != '\n') {
+		}
+	}
+
+	/* parse count whitespace separated ints from the bytes between start and end */
+	private void parseLine(int start, int end, int[] values, int offset, int count, int row) throws IOException {
+		int i = start;
+		for(int n = 0; n < count; n++) {
+			while(i < end && isSpace(buffer.get(i))) {
+				i++;
+			}
+			if(i == end) {
+				throw new IOException((row < 0 ? "Map header" : "Row " + row) + " has " + n + " values, expected " + count);
+			}
+
+			boolean negative = buffer.get(i) == '-';
+			if(negative) {
+				i++;
+			}
+			int digitsStart = i;
+			long value = 0;
+			while(i < end && value <= Integer.MAX_VALUE) {
+				int digit = buffer.get(i) - '0';
+				if(digit < 0 || digit > 9) { break; }
+				value = value * 10 + digit;
+				i++;
+			}
+			if(i == digitsStart || (i < end && !isSpace(buffer.get(i))) || value > (negative ? 1L << 31 : Integer.MAX_VALUE)) {
+				throw new IOException("Bad value at byte " + digitsStart);
+			}
+			values[offset + n] = (int)(negative ? -value : value);
+		}
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+}
@@ -0,0 +1,91 @@
+package main;
+
+/* The tile and collision layers of a map. Tile id 0 is an empty cell and
+   collision values are 0 or 1. */
+public interface MapModel {
+
+	/* the part of the map that stays put when it is resized */
+	enum Anchor {
+		topLeft(0, 0),
+		top(1, 0),
+		topRight(2, 0),
+		left(0, 1),
+		center(1, 1),
+		right(2, 1),
+		bottomLeft(0, 2),
+		bottom(1, 2),
+		bottomRight(2, 2);
+
+		// in halves of the size change, 0 keeps the left or top edge fixed
+		private final int horizontal;
+		private final int vertical;
+
+		Anchor(int horizontal, int vertical) {
+			this.horizontal = horizontal;
+			this.vertical = vertical;
+		}
+
+		/* how far existing columns move when the map changes width */
+		public int offsetX(int oldColumns, int newColumns) {
+			return (newColumns - oldColumns) * horizontal / 2;
+		}
+
+		/* how far existing rows move when the map changes height */
+		public int offsetY(int oldRows, int newRows) {
+			return (newRows - oldRows) * vertical / 2;
+		}
+	}
+
+	interface RegionVisitor {
+		void visit(int x, int y, int width, int height);
+	}
+
+	int getColumns();
+
+	int getRows();
+
+	int getTile(int x, int y);
+
+	void setTile(int x, int y, int id);
+
+	int getCollision(int x, int y);
+
+	void setCollision(int x, int y, int value);
+
+	/* copy a row of tile ids into row, which must hold at least columns values */
+	void getTileRow(int y, int[] row);
+
+	void setTileRow(int y, int[] row);
+
+	/* copy a column of tile ids into column, which must hold at least rows values */
+	void getTileColumn(int x, int[] column);
+
+	void setTileColumn(int x, int[] column);
+
+	void getCollisionRow(int y, int[] row);
+
+	void setCollisionRow(int y, int[] row);
+
+	void getCollisionColumn(int x, int[] column);
+
+	void setCollisionColumn(int x, int[] column);
+
+	/* empty every cell, keeping the current size */
+	void clear();
+
+	/* Change the size of the map, keeping the content at the anchor.
+	   Returns true if the existing cells stayed where they were, in which case
+	   only the cells between the old and new edges have changed. */
+	boolean resize(int columns, int rows, Anchor anchor);
+
+	/* false only if every cell in the region is known to be empty */
+	boolean hasData(int x, int y, int width, int height);
+
+	/* visit blocks of cells covering everything that is not empty */
+	void forEachRegion(RegionVisitor visitor);
+
+	/* a copy that later edits to this map do not show up in, cheap enough to
+	   take on the event thread. the copy is meant for reading, for example by a background save */
+	MapModel snapshot();
+
+}
@@ -7,11 +7,26 @@ import java.awt.Composite;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.Transparency;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
@@ -34,12 +49,42 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 	private static final int MAXIMUM_COLUMS = 1024;
 	private static final int MAXIMUM_ROWS = 1024;
 	
+	// larger maps are stored sparsely, see SparseMapModel
+	private static final int MAXIMUM_SPARSE_COLUMNS = 65536;
+	private static final int MAXIMUM_SPARSE_ROWS = 65536;
+	
+	private static final AlphaComposite HALF_TRANSPARENT = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f);
+	private static final BasicStroke COLLISION_STROKE = new BasicStroke(3);
+	private static final IndexColorModel COLLISION_COLORS = new IndexColorModel(1, 2,
+			new byte[] { 0, (byte)255 }, new byte[] { 0, 0 }, new byte[] { 0, 0 }, new byte[] { 0, (byte)255 });
+	
+	private static final int MASK_SHIFT = 6;
+	private static final int MASK_SIZE = 1 << MASK_SHIFT;
+	
+	private static final int CHUNK_SIZE = 16;
+	// cells this size or smaller are drawn as a block of the tile's average colour
+	private static final int COLOR_BLOCK_SIZE = 4;
+	// roughly 64MB of cached chunk images, whatever the tile size
+	private static final int MAXIMUM_CACHED_PIXELS = 16 * 1024 * 1024;
+	
+	// the most cells one fill may change, every cell of the largest dense map. more would swamp
+	// the undo history and the journal, and on a sparse map allocate every chunk
+	private static final int MAXIMUM_FILL_CELLS = MAXIMUM_COLUMS * MAXIMUM_ROWS;
+	
+	// rows of cells each task checks when the collision rules are applied to the whole map
+	private static final int COLLISION_BAND_ROWS = 16;
+	
 	private int columns;
 	private int rows;
 	
 	private int tileWidth;
 	private int tileHeight;
 	
+	private int zoomLevel;
+	private int cellWidth;
+	private int cellHeight;
+	private int chunkSize;
+	
 	private int mapWidth;
 	private int mapHeight;
 	
@@ -47,19 +92,64 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 	private boolean drawTileLayer;
 	private boolean drawCollisionLayer;
 	
-	private int[][] tileLayer;
-	private int[][] collisionLayer;
+	private MapModel map;
+	private Map<Integer, BufferedImage> collisionMasks;
 	
-	private BufferedImage[][] tileImages;
-	private BufferedImage paintbrush;
+	private TileSet tileset;
+	private Minimap minimap;
+	private EditJournal journal;
+	private UndoHistory undoHistory;
 	private int paintID;
 	private DrawLayer drawLayer;
 	
+	private CollisionRules collisionRules;
+	// once set, placing a tile sets its collision from the rules
+	private boolean autoCollision;
+	// cleared by any edit that may have left a tile's collision disagreeing with its rule
+	private boolean collisionFollowsRules;
+	
 	private int mouseX;
 	private int mouseY;
 	
 	private boolean canDraw;
 	
+	private Rectangle dirtyRegion;
+	
+	private Map<Integer, BufferedImage> chunkCache;
+	
+	private Tool tool;
+	// packed x, y pairs waiting to be filled, kept between fills
+	private int[] fillStack;
+	
+	// the cell the brush was last dragged over
+	private int lastX;
+	private int lastY;
+	
+	// the line or rectangle being dragged out, drawn as a preview until the button is released
+	private boolean shapeActive;
+	private int shapeStartX;
+	private int shapeStartY;
+	private int shapeEndX;
+	private int shapeEndY;
+	
+	// bounding box of the cells written since the caches were last brought up to date
+	private boolean cellsChanged;
+	private int changedMinX;
+	private int changedMinY;
+	private int changedMaxX;
+	private int changedMaxY;
+	
+	public enum Tool {
+		brush,
+		line,
+		rectangle,
+		fill
+	}
+	
+	private interface CellVisitor {
+		void visit(int x, int y);
+	}
+	
 	private enum DrawLayer {
 		tileLayer,
 		collisionLayer
@@ -75,6 +165,7 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 		this.tileWidth = tileWidth;
 		this.tileHeight = tileHeight;
 		
+		updateZoom(0);
 		mapWidth = DEFAULT_WIDTH;
 		mapHeight = DEFAULT_HEIGHT;
 		
@@ -90,18 +181,169 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 	}
 		
 	public void initialise() {
-		tileLayer = new int[rows][columns];
-		collisionLayer = new int[rows][columns];
+		map = new DenseMapModel(columns, rows);
+		collisionMasks = new HashMap<>();
+		rebuildCollisionMask();
+		undoHistory = new UndoHistory(this, UndoHistory.DEFAULT_MEMORY_LIMIT);
+		collisionRules = new CollisionRules();
+		fillStack = new int[1024];
+		tool = Tool.brush;
 		
-		tileImages = new BufferedImage[rows][columns];
+		chunkCache = new LinkedHashMap<Integer, BufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+				long chunkPixels = (long)chunkSize * cellWidth * chunkSize * cellHeight;
+				return size() > Math.max(16, MAXIMUM_CACHED_PIXELS / chunkPixels);
+			}
+		};
 		
 		drawTileLayer = true;
 		drawCollisionLayer = true;
 		drawGrid = true;
 	}	
 	
-	public void setPaintbrush(BufferedImage paintbrush, int paintID) {
-		this.paintbrush = paintbrush;
+	public void zoomIn() {
+		if(zoomLevel > 0) {
+			updateZoom(zoomLevel - 1);
+		}
+	}
+	
+	public void zoomOut() {
+		if(cellWidth > 1 && cellHeight > 1) {
+			updateZoom(zoomLevel + 1);
+		}
+	}
+	
+	public void resetZoom() {
+		updateZoom(0);
+	}
+	
+	/* each zoom level halves the cell size. chunks grow to match so a chunk always covers the same pixels */
+	private void updateZoom(int zoomLevel) {
+		this.zoomLevel = zoomLevel;
+		cellWidth = Math.max(1, tileWidth >> zoomLevel);
+		cellHeight = Math.max(1, tileHeight >> zoomLevel);
+		chunkSize = CHUNK_SIZE << zoomLevel;
+		
+		mapWidth = columns * cellWidth;
+		mapHeight = rows * cellHeight;
+		
+		if(chunkCache != null) {
+			chunkCache.clear();
+		}
+		revalidate();
+		repaint();
+	}
+	
+	public void setTileSet(TileSet tileset) {
+		this.tileset = tileset;
+	}
+	
+	/* placed tiles are resolved by id at draw time so a reloaded tileset only needs the cache cleared.
+	   the tileset that changed is passed in, it may not have been set on the panel */
+	public void tilesetChanged(TileSet changed) {
+		// the rules were for the old tiles, start again from what the new ones look like
+		collisionRules.reset(changed);
+		chunkCache.clear();
+		rebuildMinimap();
+		if(autoCollision) {
+			applyCollisionRules();
+		}
+		repaint();
+	}
+	
+	public void setMinimap(Minimap minimap) {
+		this.minimap = minimap;
+		rebuildMinimap();
+	}
+	
+	public void setJournal(EditJournal journal) {
+		this.journal = journal;
+	}
+	
+	/* how much memory undo may hold on to, older actions are forgotten past it */
+	public void setUndoMemoryLimit(int bytes) {
+		undoHistory = new UndoHistory(this, bytes);
+	}
+	
+	public void undo() {
+		undoHistory.undo();
+		commitCells(true);
+		repaint();
+	}
+	
+	public void redo() {
+		undoHistory.redo();
+		commitCells(true);
+		repaint();
+	}
+	
+	/* set a cell for an undo or redo, the caches catch up in commitCells once it is done */
+	public void restoreTile(int x, int y, int id) {
+		if(writeTile(x, y, id)) {
+			cellChanged(x, y);
+		}
+	}
+	
+	public void restoreCollision(int x, int y, int value) {
+		if(writeCollision(x, y, value)) {
+			cellChanged(x, y);
+		}
+	}
+	
+	public TileSet getTileSet() {
+		return tileset;
+	}
+	
+	public MapModel getMap() {
+		return map;
+	}
+	
+	public int getTileWidth() {
+		return tileWidth;
+	}
+	
+	public int getTileHeight() {
+		return tileHeight;
+	}
+	
+	public int getColumns() {
+		return columns;
+	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	public int getTile(int x, int y) {
+		return map.getTile(x, y);
+	}
+	
+	public int getCollision(int x, int y) {
+		return map.getCollision(x, y);
+	}
+	
+	/* the cells currently showing in the enclosing scroll pane */
+	public Rectangle getVisibleCells() {
+		Rectangle visible = getVisibleRect();
+		int x = visible.x / cellWidth;
+		int y = visible.y / cellHeight;
+		int width = (visible.x + visible.width + cellWidth - 1) / cellWidth - x;
+		int height = (visible.y + visible.height + cellHeight - 1) / cellHeight - y;
+		return new Rectangle(x, y, width, height);
+	}
+	
+	/* scroll the enclosing viewport so the given cell sits in the middle of it */
+	public void centerOnCell(int x, int y) {
+		Rectangle visible = getVisibleRect();
+		int centerX = x * cellWidth + cellWidth / 2;
+		int centerY = y * cellHeight + cellHeight / 2;
+		scrollRectToVisible(new Rectangle(centerX - visible.width / 2, centerY - visible.height / 2, visible.width, visible.height));
+	}
+	
+	public void setPaintbrush(int paintID) {
 		this.paintID = paintID;
 	}
 	
@@ -140,187 +382,730 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 		repaint();
 	}
 	
-	private void drawToLayer(MouseEvent e) {
-		if(!canDraw) { return; }
-		
-		if(drawLayer == DrawLayer.collisionLayer) {
-			drawToCollisionLayer(e);
+	/* the value a mouse event paints with, -1 if it's neither the left nor the right button */
+	private int getPaintValue(MouseEvent e) {
+		if(SwingUtilities.isLeftMouseButton(e)) {
+			return drawLayer == DrawLayer.collisionLayer ? 1 : paintID;
 		}
-		else if(drawLayer == DrawLayer.tileLayer) {
-			drawToTileLayer(e);
+		if(SwingUtilities.isRightMouseButton(e)) {
+			return 0;
 		}
+		return -1;
 	}
 	
-	private void drawToTileLayer(MouseEvent e) {
-		int x = e.getX() / tileWidth;
-		int y = e.getY() / tileHeight;
-		if(x >= 0 && x < columns && y >= 0 && y < rows) {
-			if(SwingUtilities.isLeftMouseButton(e)) {
-				tileLayer[y][x] = paintID;
-				tileImages[y][x] = paintbrush;
-			}
-			else if(SwingUtilities.isRightMouseButton(e)) {
-				tileImages[y][x] = null;
-				tileLayer[y][x] = 0;
+	private void startDrawing(MouseEvent e) {
+		if(!canDraw || drawLayer == null) { return; }
+		
+		int x = e.getX() / cellWidth;
+		int y = e.getY() / cellHeight;
+		int value = getPaintValue(e);
+		if(value < 0) { return; }
+		
+		if(tool == Tool.brush) {
+			paintCell(x, y, value);
+			commitCells(drawLayer != DrawLayer.collisionLayer);
+			lastX = x;
+			lastY = y;
+		}
+		else if(tool == Tool.fill) {
+			if(x >= 0 && x < columns && y >= 0 && y < rows && !floodFill(x, y, drawLayer == DrawLayer.collisionLayer, value)) {
+				// shown once the mouse event is over
+				SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+						"That area is too large to fill, it has more than " + MAXIMUM_FILL_CELLS + " cells", "Error", JOptionPane.ERROR_MESSAGE));
 			}
 		}
-		repaint();
+		else {
+			shapeActive = true;
+			shapeStartX = shapeEndX = x;
+			shapeStartY = shapeEndY = y;
+			markShapeDirty();
+		}
 	}
 	
-	private void drawToCollisionLayer(MouseEvent e) {
-		int x = e.getX() / tileWidth;
-		int y = e.getY() / tileHeight;
+	private void continueDrawing(MouseEvent e) {
+		if(!canDraw || drawLayer == null) { return; }
 		
-		if(x >= 0 && x < columns && y >= 0 && y < rows) {
-			if(SwingUtilities.isLeftMouseButton(e)) {
-				collisionLayer[y][x] = 1;
-			}
-			else if(SwingUtilities.isRightMouseButton(e)) {
-				collisionLayer[y][x] = 0;
-			}
+		int x = e.getX() / cellWidth;
+		int y = e.getY() / cellHeight;
+		if(tool == Tool.brush) {
+			int value = getPaintValue(e);
+			if(value < 0) { return; }
+			
+			// join up with the last cell so a fast drag leaves no gaps
+			forEachLineCell(lastX, lastY, x, y, (cellX, cellY) -> paintCell(cellX, cellY, value));
+			commitCells(drawLayer != DrawLayer.collisionLayer);
+			lastX = x;
+			lastY = y;
+		}
+		else if(shapeActive && (x != shapeEndX || y != shapeEndY)) {
+			markShapeDirty();
+			shapeEndX = x;
+			shapeEndY = y;
+			markShapeDirty();
 		}
-		repaint();
 	}
 	
-	public void addColumn() {
-		if(columns >= MAXIMUM_COLUMS) { return; }
-		
-		columns++;
-		mapWidth = columns * tileWidth;
-		
-		int[][] tileLayer = new int[rows][columns];
-		int[][] collisionLayer = new int[rows][columns];
-		BufferedImage[][] tileImages = new BufferedImage[rows][columns];
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns - 1; x++) {
-				tileLayer[y][x] = this.tileLayer[y][x];
-				collisionLayer[y][x] = this.collisionLayer[y][x];
-				tileImages[y][x] = this.tileImages[y][x];
-			}
-		}
+	private void finishDrawing(MouseEvent e) {
+		if(!shapeActive) { return; }
 		
-		this.tileLayer = tileLayer;
-		this.collisionLayer = collisionLayer;
-		this.tileImages = tileImages;
+		shapeActive = false;
+		markShapeDirty();
+		int value = getPaintValue(e);
+		if(value < 0) { return; }
 		
-		repaint();
-		revalidate();
+		forEachShapeCell(0, 0, columns - 1, rows - 1, (x, y) -> paintCell(x, y, value));
+		commitCells(drawLayer != DrawLayer.collisionLayer);
 	}
 	
-	public void addRow() {
-		if(rows >= MAXIMUM_ROWS) { return; }
-		
-		rows++;
-		mapHeight = rows * tileHeight;
-		
-		int[][] tileLayer = new int[rows][columns];
-		int[][] collisionLayer = new int[rows][columns];
-		BufferedImage[][] tileImages = new BufferedImage[rows][columns];
-		for(int y = 0; y < rows - 1; y++) {
-			for(int x = 0; x < columns; x++) {
-				tileLayer[y][x] = this.tileLayer[y][x];
-				collisionLayer[y][x] = this.collisionLayer[y][x];
-				tileImages[y][x] = this.tileImages[y][x];
+	private void markShapeDirty() {
+		int x = Math.min(shapeStartX, shapeEndX);
+		int y = Math.min(shapeStartY, shapeEndY);
+		markDirty(x, y, Math.abs(shapeEndX - shapeStartX) + 1, Math.abs(shapeEndY - shapeStartY) + 1);
+	}
+	
+	/* visit the cells of the line or rectangle being dragged out that lie within the given bounds */
+	private void forEachShapeCell(int minX, int minY, int maxX, int maxY, CellVisitor visitor) {
+		if(tool == Tool.line) {
+			forEachLineCell(shapeStartX, shapeStartY, shapeEndX, shapeEndY, (x, y) -> {
+				if(x >= minX && x <= maxX && y >= minY && y <= maxY) {
+					visitor.visit(x, y);
+				}
+			});
+		}
+		else {
+			// clipped first, a big rectangle mostly off screen or off the map would be a lot of nothing to visit
+			int firstX = Math.max(minX, Math.min(shapeStartX, shapeEndX));
+			int lastX = Math.min(maxX, Math.max(shapeStartX, shapeEndX));
+			int firstY = Math.max(minY, Math.min(shapeStartY, shapeEndY));
+			int lastY = Math.min(maxY, Math.max(shapeStartY, shapeEndY));
+			for(int y = firstY; y <= lastY; y++) {
+				for(int x = firstX; x <= lastX; x++) {
+					visitor.visit(x, y);
+				}
 			}
 		}
-		
-		this.tileLayer = tileLayer;
-		this.collisionLayer = collisionLayer;
-		this.tileImages = tileImages;
-		
-		repaint();
-		revalidate();
 	}
 	
-	public void removeColumn() {		
-		if(columns <= MINIMUM_COLUMNS) { return; }
+	/* Bresenham's line, every cell from one end to the other with no diagonal gaps in the run */
+	private static void forEachLineCell(int x0, int y0, int x1, int y1, CellVisitor visitor) {
+		int dx = Math.abs(x1 - x0);
+		int dy = -Math.abs(y1 - y0);
+		int stepX = x0 < x1 ? 1 : -1;
+		int stepY = y0 < y1 ? 1 : -1;
+		int error = dx + dy;
+		while(true) {
+			visitor.visit(x0, y0);
+			if(x0 == x1 && y0 == y1) { break; }
+			int error2 = error * 2;
+			if(error2 >= dy) {
+				error += dy;
+				x0 += stepX;
+			}
+			if(error2 <= dx) {
+				error += dx;
+				y0 += stepY;
+			}
+		}
+	}
+	
+	/* write one cell of the layer being drawn to, the caches catch up in commitCells */
+	private void paintCell(int x, int y, int value) {
+		if(x < 0 || x >= columns || y < 0 || y >= rows) { return; }
 		
-		columns--;
-		mapWidth = columns * tileWidth;
+		boolean collision = drawLayer == DrawLayer.collisionLayer;
+		if(collision ? writeCollision(x, y, value) : writeTile(x, y, value)) {
+			cellChanged(x, y);
+		}
+	}
+	
+	private void cellChanged(int x, int y) {
+		if(!cellsChanged) {
+			cellsChanged = true;
+			changedMinX = changedMaxX = x;
+			changedMinY = changedMaxY = y;
+			return;
+		}
+		changedMinX = Math.min(changedMinX, x);
+		changedMaxX = Math.max(changedMaxX, x);
+		changedMinY = Math.min(changedMinY, y);
+		changedMaxY = Math.max(changedMaxY, y);
+	}
+	
+	/* bring the chunk cache and minimap up to date with everything written since the
+	   last commit, in one go over the bounding box, and mark the box for repainting.
+	   the chunk cache only holds tiles, so it is left alone if only collision changed */
+	private void commitCells(boolean tilesChanged) {
+		if(!cellsChanged) { return; }
 		
-		int[][] tileLayer = new int[rows][columns];
-		int[][] collisionLayer = new int[rows][columns];
-		BufferedImage[][] tileImages = new BufferedImage[rows][columns];
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				tileLayer[y][x] = this.tileLayer[y][x];
-				collisionLayer[y][x] = this.collisionLayer[y][x];
-				tileImages[y][x] = this.tileImages[y][x];
+		cellsChanged = false;
+		if(tilesChanged) {
+			for(int cy = changedMinY / chunkSize; cy <= changedMaxY / chunkSize; cy++) {
+				for(int cx = changedMinX / chunkSize; cx <= changedMaxX / chunkSize; cx++) {
+					chunkCache.remove(chunkKey(cx, cy));
+				}
 			}
 		}
+		int width = changedMaxX - changedMinX + 1;
+		int height = changedMaxY - changedMinY + 1;
+		if(minimap != null) {
+			minimap.updateRegion(changedMinX, changedMinY, width, height);
+		}
+		markDirty(changedMinX, changedMinY, width, height);
+	}
+	
+	public void setTool(Tool tool) {
+		this.tool = tool;
+	}
+	
+	public void addColumn() {
+		resize(columns + 1, rows, MapModel.Anchor.topLeft);
+	}
+	
+	public void addRow() {
+		resize(columns, rows + 1, MapModel.Anchor.topLeft);
+	}
+	
+	public void removeColumn() {
+		resize(columns - 1, rows, MapModel.Anchor.topLeft);
+	}
+	
+	public void removeRow() {
+		resize(columns, rows - 1, MapModel.Anchor.topLeft);
+	}
+	
+	/* resize the map in one step, keeping the content at the anchor */
+	public void resize(int columns, int rows, MapModel.Anchor anchor) {
+		boolean sparse = map instanceof SparseMapModel;
+		columns = Math.max(MINIMUM_COLUMNS, Math.min(sparse ? MAXIMUM_SPARSE_COLUMNS : MAXIMUM_COLUMS, columns));
+		rows = Math.max(MINIMUM_ROWS, Math.min(sparse ? MAXIMUM_SPARSE_ROWS : MAXIMUM_ROWS, rows));
+		if(columns == this.columns && rows == this.rows) { return; }
 		
-		this.tileLayer = tileLayer;
-		this.collisionLayer = collisionLayer;
-		this.tileImages = tileImages;
+		int oldColumns = this.columns;
+		int oldRows = this.rows;
+		undoHistory.resized(columns, rows, anchor);
+		boolean inPlace = map.resize(columns, rows, anchor);
+		if(journal != null) {
+			journal.resized(columns, rows, anchor);
+		}
 		
+		this.columns = columns;
+		this.rows = rows;
+		mapWidth = columns * cellWidth;
+		mapHeight = rows * cellHeight;
+		
+		if(inPlace) {
+			// only the strips between the old and new edges changed
+			refreshRegion(Math.min(oldColumns, columns), 0, Math.max(oldColumns, columns), Math.max(oldRows, rows));
+			refreshRegion(0, Math.min(oldRows, rows), Math.max(oldColumns, columns), Math.max(oldRows, rows));
+		}
+		else {
+			chunkCache.clear();
+			rebuildCollisionMask();
+			rebuildMinimap();
+		}
 		repaint();
 		revalidate();
 	}
 	
-	public void removeRow() {
-		if(rows <= MINIMUM_ROWS) { return; }
-		
-		rows--;
-		mapHeight = rows * tileHeight;
-		
-		int[][] tileLayer = new int[rows][columns];
-		int[][] collisionLayer = new int[rows][columns];
-		BufferedImage[][] tileImages = new BufferedImage[rows][columns];
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				tileLayer[y][x] = this.tileLayer[y][x];
-				collisionLayer[y][x] = this.collisionLayer[y][x];
-				tileImages[y][x] = this.tileImages[y][x];
+	/* bring the caches back in line with the model for a block of cells */
+	private void refreshRegion(int startX, int startY, int endX, int endY) {
+		for(int cy = startY / chunkSize; cy * chunkSize < endY; cy++) {
+			for(int cx = startX / chunkSize; cx * chunkSize < endX; cx++) {
+				chunkCache.remove(chunkKey(cx, cy));
 			}
 		}
 		
-		this.tileLayer = tileLayer;
-		this.collisionLayer = collisionLayer;
-		this.tileImages = tileImages;
-		
-		repaint();
-		revalidate();
+		// cells outside the map are not drawn, only the ones inside need updating
+		for(int y = startY; y < Math.min(endY, rows); y++) {
+			for(int x = startX; x < Math.min(endX, columns); x++) {
+				setCollisionMask(x, y, map.getCollision(x, y));
+				updateMinimap(x, y);
+			}
+		}
 	}
 	
 	public void loadNewMap(int columns, int rows, int tileWidth, int tileHeight) {
-		this.columns = columns;
-		this.rows = rows;
 		this.tileWidth = tileWidth;
 		this.tileHeight = tileHeight;
 		
-		mapWidth = columns * tileWidth;
-		mapHeight = rows * tileHeight;
+		if(isSparse(columns, rows) != map instanceof SparseMapModel) {
+			map = createModel(columns, rows);
+		}
+		else {
+			map.clear();
+			map.resize(columns, rows, MapModel.Anchor.topLeft);
+		}
+		mapReplaced();
+	}
+	
+	/* show a map that was built elsewhere, such as one read from a file */
+	public void loadMap(MapModel map, int tileWidth, int tileHeight) {
+		this.map = map;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		
+		mapReplaced();
+	}
+	
+	private void mapReplaced() {
+		columns = map.getColumns();
+		rows = map.getRows();
 		
-		tileLayer = new int[rows][columns];
-		collisionLayer = new int[rows][columns];
-		tileImages = new BufferedImage[rows][columns];
+		updateZoom(0);
 		
+		chunkCache.clear();
+		rebuildCollisionMask();
+		rebuildMinimap();
 		revalidate();
+		
+		// a loaded map keeps the collision layer it came with
+		autoCollision = false;
+		undoHistory.clear();
+		if(journal != null) {
+			journal.mapReplaced();
+		}
+	}
+	
+	// maps too big to hold densely only allocate the parts that are painted
+	private static boolean isSparse(int columns, int rows) {
+		return columns > MAXIMUM_COLUMS || rows > MAXIMUM_ROWS;
+	}
+	
+	/* false for a size no map can have, checked against the size a file claims before anything is allocated for it */
+	public static boolean isValidSize(long columns, long rows) {
+		return columns > 0 && rows > 0 && columns <= MAXIMUM_SPARSE_COLUMNS && rows <= MAXIMUM_SPARSE_ROWS;
 	}
 	
+	/* an empty model of the right kind for a map of this size */
+	public static MapModel createModel(int columns, int rows) {
+		if(isSparse(columns, rows)) {
+			return new SparseMapModel(columns, rows);
+		}
+		return new DenseMapModel(columns, rows);
+	}
+	
+	public CollisionRules getCollisionRules() {
+		return collisionRules;
+	}
+	
+	/* change whether a tile and any copies of it in the tileset block, the collision layer
+	   follows if it is being generated */
+	public void setTileBlocks(int id, boolean blocks) {
+		boolean changed = collisionRules.setBlocks(id, blocks);
+		if(tileset != null) {
+			int canonicalId = tileset.getCanonicalId(id);
+			for(int other = 0; other < tileset.getTileCount(); other++) {
+				if(other != id && tileset.getCanonicalId(other) == canonicalId) {
+					changed |= collisionRules.setBlocks(other, blocks);
+				}
+			}
+		}
+		if(changed && autoCollision) {
+			applyCollisionRules();
+		}
+	}
+	
+	/* set the collision of every tile from the rules and keep it that way as tiles are
+	   placed, so after the first time there is nothing left to do. empty cells keep
+	   whatever collision was painted on them, and so do tiles that are only passable
+	   because of how they look */
 	public void autoFillCollision() {
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				if(tileLayer[y][x] != 0) {
-					collisionLayer[y][x] = 1;
+		if(autoCollision && collisionFollowsRules) { return; }
+		
+		autoCollision = true;
+		applyCollisionRules();
+	}
+	
+	/* the cells that disagree with the rules are found in parallel bands of rows on the common
+	   fork/join pool, reading the model from several threads is safe as long as nothing writes to it.
+	   they are then written here, usually only a handful, as one action that only keeps where they are */
+	private void applyCollisionRules() {
+		List<int[]> bands = new ArrayList<>();
+		map.forEachRegion((startX, startY, width, height) -> {
+			for(int y = startY; y < startY + height; y += COLLISION_BAND_ROWS) {
+				bands.add(new int[] { startX, y, width, Math.min(COLLISION_BAND_ROWS, startY + height - y) });
+			}
+		});
+		int[][] changes = IntStream.range(0, bands.size()).parallel()
+				.mapToObj(band -> findCollisionChanges(bands.get(band)))
+				.toArray(int[][]::new);
+		
+		undoHistory.beginCollisionFill();
+		for(int[] cells : changes) {
+			for(int i = 0; i < cells.length; i += 2) {
+				writeCollision(cells[i], cells[i + 1], collisionRules.getCollision(map.getTile(cells[i], cells[i + 1])));
+				cellChanged(cells[i], cells[i + 1]);
+			}
+		}
+		undoHistory.endAction();
+		collisionFollowsRules = true;
+		commitCells(false);
+		repaintDirty();
+	}
+	
+	/* packed x, y pairs of the cells in a band holding a tile with a collision the rules don't allow */
+	private int[] findCollisionChanges(int[] band) {
+		int[] cells = new int[0];
+		int size = 0;
+		for(int y = band[1]; y < band[1] + band[3]; y++) {
+			for(int x = band[0]; x < band[0] + band[2]; x++) {
+				int tile = map.getTile(x, y);
+				if(tile == 0 || collisionRules.allows(tile, map.getCollision(x, y))) { continue; }
+				
+				if(size + 2 > cells.length) {
+					cells = Arrays.copyOf(cells, Math.max(64, cells.length * 2));
 				}
+				cells[size++] = x;
+				cells[size++] = y;
 			}
 		}
-		repaint();
+		return Arrays.copyOf(cells, size);
 	}
 	
 	public void setMousePosition(MouseEvent e) {
-		int x = e.getX() / tileWidth;
-		int y = e.getY() / tileHeight;
+		int x = e.getX() / cellWidth;
+		int y = e.getY() / cellHeight;
 		
 		x = Math.min(x, columns - 1);
 		x = Math.max(x, 0);
 		y = Math.min(y, rows - 1);
 		y = Math.max(y, 0);
+		if(x != mouseX || y != mouseY) {
+			markDirty(mouseX, mouseY);
+			markDirty(x, y);
+		}
 		mouseX = x;
 		mouseY = y;
 	}
 	
+	/* add a cell to the region repainted at the end of the current event */
+	private void markDirty(int x, int y) {
+		markDirty(x, y, 1, 1);
+	}
+	
+	/* add a block of cells to the dirty region */
+	private void markDirty(int x, int y, int width, int height) {
+		// pad by the collision stroke which overhangs the cell
+		Rectangle cells = new Rectangle(x * cellWidth - 2, y * cellHeight - 2, width * cellWidth + 4, height * cellHeight + 4);
+		if(dirtyRegion == null) {
+			dirtyRegion = cells;
+		}
+		else {
+			dirtyRegion.add(cells);
+		}
+	}
+	
+	/* repaint everything marked dirty since the last flush as a single rectangle */
+	private void repaintDirty() {
+		if(dirtyRegion != null) {
+			repaint(dirtyRegion);
+			dirtyRegion = null;
+		}
+	}
+	
+	/* set a single tile, the caller is responsible for repainting */
+	public void setTile(int x, int y, int id) {
+		if(writeTile(x, y, id)) {
+			invalidateChunk(x, y);
+			updateMinimap(x, y);
+		}
+	}
+	
+	/* set a single collision cell, the caller is responsible for repainting */
+	public void setCollision(int x, int y, int value) {
+		if(writeCollision(x, y, value)) {
+			updateMinimap(x, y);
+		}
+	}
+	
+	/* change a tile in the model, the undo history and the journal, leaving
+	   the chunk cache and minimap to the caller. false if nothing changed */
+	private boolean writeTile(int x, int y, int id) {
+		int oldId = map.getTile(x, y);
+		if(oldId == id) { return false; }
+		
+		map.setTile(x, y, id);
+		undoHistory.tileChanged(x, y, oldId, id);
+		if(journal != null) {
+			journal.tileChanged(x, y, id);
+		}
+		if(autoCollision) {
+			// an undo puts the collision back itself, though not necessarily the way the rules would
+			if(undoHistory.isApplying()) {
+				collisionFollowsRules = false;
+			}
+			// erasing a tile or placing one that is passable only clears the collision the old tile set,
+			// unless the new one was made passable by hand
+			else if(collisionRules.blocks(id) || collisionRules.isOverridden(id) || collisionRules.blocks(oldId)) {
+				writeCollision(x, y, collisionRules.getCollision(id));
+			}
+		}
+		return true;
+	}
+	
+	private boolean writeCollision(int x, int y, int value) {
+		int oldValue = map.getCollision(x, y);
+		if(oldValue == value) { return false; }
+		
+		map.setCollision(x, y, value);
+		setCollisionMask(x, y, value);
+		int tile = map.getTile(x, y);
+		if(tile != 0 && !collisionRules.allows(tile, value)) {
+			collisionFollowsRules = false;
+		}
+		undoHistory.collisionChanged(x, y, oldValue, value);
+		if(journal != null) {
+			journal.collisionChanged(x, y, value);
+		}
+		return true;
+	}
+	
+	/* false, changing nothing, if the area is too large to fill */
+	public boolean fillTiles(int x, int y, int id) {
+		return floodFill(x, y, false, id);
+	}
+	
+	public boolean fillCollision(int x, int y, int value) {
+		return floodFill(x, y, true, value);
+	}
+	
+	/* scanline flood fill of the cells connected to x, y holding the same value.
+	   each span is filled in one pass and only the first cell of each span
+	   above and below it is pushed, onto a reused stack of packed x, y ints.
+	   the caches are brought up to date once, over the bounding box of the fill.
+	   returns false without filling if more than MAXIMUM_FILL_CELLS would change */
+	private boolean floodFill(int startX, int startY, boolean collision, int value) {
+		int target = collision ? map.getCollision(startX, startY) : map.getTile(startX, startY);
+		if(target == value) { return true; }
+		// only a map larger than the limit can hold an area larger than it
+		if((long)columns * rows > MAXIMUM_FILL_CELLS && countFill(startX, startY, collision, target, MAXIMUM_FILL_CELLS) > MAXIMUM_FILL_CELLS) {
+			return false;
+		}
+		
+		if(collision) {
+			undoHistory.beginCollisionFill();
+		}
+		else {
+			undoHistory.beginFill(target, value);
+		}
+		int size = 0;
+		fillStack[size++] = startX;
+		fillStack[size++] = startY;
+		while(size > 0) {
+			int y = fillStack[--size];
+			int x = fillStack[--size];
+			if(getCell(x, y, collision) != target) { continue; }
+			
+			int left = x;
+			while(left > 0 && getCell(left - 1, y, collision) == target) {
+				left--;
+			}
+			int right = x;
+			while(right < columns - 1 && getCell(right + 1, y, collision) == target) {
+				right++;
+			}
+			for(int i = left; i <= right; i++) {
+				if(collision) {
+					writeCollision(i, y, value);
+				}
+				else {
+					writeTile(i, y, value);
+				}
+			}
+			cellChanged(left, y);
+			cellChanged(right, y);
+			
+			for(int ny = y - 1; ny <= y + 1; ny += 2) {
+				if(ny < 0 || ny >= rows) { continue; }
+				boolean inSpan = false;
+				for(int i = left; i <= right; i++) {
+					boolean matches = getCell(i, ny, collision) == target;
+					if(matches && !inSpan) {
+						if(size + 2 > fillStack.length) {
+							fillStack = Arrays.copyOf(fillStack, fillStack.length * 2);
+						}
+						fillStack[size++] = i;
+						fillStack[size++] = ny;
+					}
+					inSpan = matches;
+				}
+			}
+		}
+		undoHistory.endAction();
+		
+		commitCells(!collision);
+		repaintDirty();
+		return true;
+	}
+	
+	/* the number of cells a fill from x, y would change, counting no further than just past limit.
+	   the same scanline fill, with the cells it has been to marked in 64x64 blocks of bits
+	   instead of being written, so it costs nothing but memory for the cells it visits */
+	private long countFill(int startX, int startY, boolean collision, int target, long limit) {
+		Map<Integer, long[]> visited = new HashMap<>();
+		long count = 0;
+		int size = 0;
+		fillStack[size++] = startX;
+		fillStack[size++] = startY;
+		while(size > 0 && count <= limit) {
+			int y = fillStack[--size];
+			int x = fillStack[--size];
+			if(getCell(x, y, collision) != target || isVisited(visited, x, y)) { continue; }
+			
+			int left = x;
+			while(left > 0 && getCell(left - 1, y, collision) == target && !isVisited(visited, left - 1, y)) {
+				left--;
+			}
+			int right = x;
+			while(right < columns - 1 && getCell(right + 1, y, collision) == target && !isVisited(visited, right + 1, y)) {
+				right++;
+			}
+			for(int i = left; i <= right; i++) {
+				visited.computeIfAbsent(chunkKey(i >> MASK_SHIFT, y >> MASK_SHIFT), key -> new long[MASK_SIZE])[y & (MASK_SIZE - 1)] |= 1L << i;
+			}
+			count += right - left + 1;
+			
+			for(int ny = y - 1; ny <= y + 1; ny += 2) {
+				if(ny < 0 || ny >= rows) { continue; }
+				boolean inSpan = false;
+				for(int i = left; i <= right; i++) {
+					boolean matches = getCell(i, ny, collision) == target && !isVisited(visited, i, ny);
+					if(matches && !inSpan) {
+						if(size + 2 > fillStack.length) {
+							fillStack = Arrays.copyOf(fillStack, fillStack.length * 2);
+						}
+						fillStack[size++] = i;
+						fillStack[size++] = ny;
+					}
+					inSpan = matches;
+				}
+			}
+		}
+		return count;
+	}
+	
+	private static boolean isVisited(Map<Integer, long[]> visited, int x, int y) {
+		long[] block = visited.get(chunkKey(x >> MASK_SHIFT, y >> MASK_SHIFT));
+		return block != null && (block[y & (MASK_SIZE - 1)] & 1L << x) != 0;
+	}
+	
+	private int getCell(int x, int y, boolean collision) {
+		return collision ? map.getCollision(x, y) : map.getTile(x, y);
+	}
+	
+	private void updateMinimap(int x, int y) {
+		if(minimap != null) {
+			minimap.updateCell(x, y);
+		}
+	}
+	
+	private void rebuildMinimap() {
+		if(minimap != null) {
+			minimap.rebuild();
+		}
+	}
+	
+	/* set a cell in the one bit per cell collision images. they are split into
+	   64x64 blocks and blocks without any collision are never allocated */
+	private void setCollisionMask(int x, int y, int value) {
+		int key = chunkKey(x >> MASK_SHIFT, y >> MASK_SHIFT);
+		BufferedImage mask = collisionMasks.get(key);
+		if(mask == null) {
+			if(value == 0) { return; }
+			mask = new BufferedImage(MASK_SIZE, MASK_SIZE, BufferedImage.TYPE_BYTE_BINARY, COLLISION_COLORS);
+			collisionMasks.put(key, mask);
+		}
+		// one bit a cell, eight to a byte with the leftmost cell in the high bit. going through the
+		// data buffer rather than the raster skips the sample model but still marks the image changed
+		DataBuffer data = mask.getRaster().getDataBuffer();
+		int i = (y & (MASK_SIZE - 1)) * (MASK_SIZE / 8) + ((x & (MASK_SIZE - 1)) >> 3);
+		int bit = 0x80 >> (x & 7);
+		data.setElem(i, value != 0 ? data.getElem(i) | bit : data.getElem(i) & ~bit);
+	}
+	
+	/* rebuild the collision images after the layer has been replaced */
+	private void rebuildCollisionMask() {
+		collisionMasks.clear();
+		map.forEachRegion((startX, startY, width, height) -> {
+			for(int y = startY; y < startY + height; y++) {
+				for(int x = startX; x < startX + width; x++) {
+					if(map.getCollision(x, y) != 0) {
+						setCollisionMask(x, y, 1);
+					}
+				}
+			}
+		});
+	}
+	
+	private static int chunkKey(int chunkX, int chunkY) {
+		// HashMap only mixes the high half of the hash into the low one, so x and y packed side by side
+		// collide as chunkX ^ chunkY. multiplying by an odd number spreads them and keeps keys distinct
+		return (chunkY << 16 | chunkX) * 0x9E3779B1;
+	}
+	
+	/* drop the cached image of the chunk containing a cell so it is rebuilt on the next paint */
+	private void invalidateChunk(int x, int y) {
+		chunkCache.remove(chunkKey(x / chunkSize, y / chunkSize));
+	}
+	
+	/* get the cached image of a chunk, rasterizing it first if needed. null means the chunk is empty */
+	private BufferedImage getChunkImage(int chunkX, int chunkY) {
+		int key = chunkKey(chunkX, chunkY);
+		BufferedImage image = chunkCache.get(key);
+		if(image == null && !chunkCache.containsKey(key)) {
+			image = renderChunk(chunkX, chunkY);
+			chunkCache.put(key, image);
+		}
+		return image;
+	}
+	
+	private BufferedImage renderChunk(int chunkX, int chunkY) {
+		int startX = chunkX * chunkSize;
+		int startY = chunkY * chunkSize;
+		int endX = Math.min(columns, startX + chunkSize);
+		int endY = Math.min(rows, startY + chunkSize);
+		if(!map.hasData(startX, startY, endX - startX, endY - startY)) {
+			return null;
+		}
+		boolean colorBlocks = Math.min(cellWidth, cellHeight) <= COLOR_BLOCK_SIZE;
+		int[] block = colorBlocks ? new int[cellWidth * cellHeight] : null;
+		
+		BufferedImage image = null;
+		Graphics2D g2d = null;
+		for(int y = startY; y < endY; y++) {
+			for(int x = startX; x < endX; x++) {
+				int id = map.getTile(x, y);
+				// fully transparent tiles are skipped, so a chunk of nothing else stays without an image
+				if(id == 0 || tileset == null || tileset.isEmpty(id)) { continue; }
+				
+				if(image == null) {
+					image = createChunkImage(chunkSize * cellWidth, chunkSize * cellHeight);
+					g2d = image.createGraphics();
+				}
+				if(colorBlocks) {
+					// too small for detail to show, fill the cell with the tile's average colour
+					Arrays.fill(block, tileset.getAverageColor(id));
+					image.setRGB((x - startX) * cellWidth, (y - startY) * cellHeight, cellWidth, cellHeight, block, 0, cellWidth);
+				}
+				else {
+					tileset.drawTile(g2d, id, (x - startX) * cellWidth, (y - startY) * cellHeight, cellWidth, cellHeight);
+				}
+			}
+		}
+		if(g2d != null) {
+			g2d.dispose();
+		}
+		return image;
+	}
+	
+	private BufferedImage createChunkImage(int width, int height) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if(gc == null) {
+			return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		}
+		return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+	}
+	
 	public void setCanDraw(boolean canDraw) {
 		this.canDraw = canDraw;
 	}
@@ -332,94 +1117,126 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 		Graphics2D g2d = (Graphics2D)g;
 		Composite originalComposite = g2d.getComposite();
 		
+		/* only visit the cells inside the clip, padded by a pixel for the collision stroke */
+		Rectangle clip = g2d.getClipBounds();
+		if(clip == null) {
+			clip = new Rectangle(0, 0, columns * cellWidth, rows * cellHeight);
+		}
+		int firstColumn = Math.max(0, (clip.x - 2) / cellWidth);
+		int firstRow = Math.max(0, (clip.y - 2) / cellHeight);
+		int lastColumn = Math.min(columns - 1, (clip.x + clip.width + 1) / cellWidth);
+		int lastRow = Math.min(rows - 1, (clip.y + clip.height + 1) / cellHeight);
+		
 		if(drawTileLayer) {
-			for(int y = 0; y < rows; y++) {
-				for(int x = 0; x < columns; x++) {
-					BufferedImage image = tileImages[y][x];
+			for(int cy = firstRow / chunkSize; cy <= lastRow / chunkSize; cy++) {
+				for(int cx = firstColumn / chunkSize; cx <= lastColumn / chunkSize; cx++) {
+					BufferedImage image = getChunkImage(cx, cy);
 					if(image != null) {
-						g2d.drawImage(image, x * tileWidth, y * tileHeight, tileWidth, tileHeight, null);
-					}					
+						g2d.drawImage(image, cx * chunkSize * cellWidth, cy * chunkSize * cellHeight, null);
+					}
 				}
 			}
 		}
 		
-		if(drawCollisionLayer) {			
-			g2d.setColor(Color.RED);
-			g2d.setStroke(new BasicStroke(3));
-			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
-			for(int y = 0; y < rows; y++) {
-				for(int x = 0; x < columns; x++) {
-					int value = collisionLayer[y][x];
-					if(value == 1) {
-						g2d.drawRect(x * tileWidth, y * tileHeight, tileWidth, tileHeight);
-						g2d.setColor(Color.RED.brighter());
-						g2d.fillRect(x * tileWidth, y * tileHeight, tileWidth, tileHeight);
+		if(drawCollisionLayer) {
+			// scale each visible block of the mask up to the cells in a single blit. blocks on
+			// the edge can hold stale bits of removed cells, so nothing past the map is drawn
+			Shape originalClip = g2d.getClip();
+			g2d.clipRect(0, 0, columns * cellWidth, rows * cellHeight);
+			g2d.setComposite(HALF_TRANSPARENT);
+			for(int my = firstRow >> MASK_SHIFT; my <= lastRow >> MASK_SHIFT; my++) {
+				for(int mx = firstColumn >> MASK_SHIFT; mx <= lastColumn >> MASK_SHIFT; mx++) {
+					BufferedImage mask = collisionMasks.get(chunkKey(mx, my));
+					if(mask != null) {
+						g2d.drawImage(mask, mx * MASK_SIZE * cellWidth, my * MASK_SIZE * cellHeight, MASK_SIZE * cellWidth, MASK_SIZE * cellHeight, null);
 					}
 				}
 			}
-			g2d.setStroke(new BasicStroke(1));
 			g2d.setComposite(originalComposite);
+			g2d.setClip(originalClip);
 		}
 		
-		if(drawLayer == DrawLayer.tileLayer) {
-			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
-			g2d.drawImage(paintbrush, mouseX * tileWidth, mouseY * tileHeight, tileWidth, tileHeight, null);
-			g2d.setComposite(originalComposite);
-		}
-		else if(drawLayer == DrawLayer.collisionLayer) {
+		boolean brushVisible = mouseX >= firstColumn && mouseX <= lastColumn && mouseY >= firstRow && mouseY <= lastRow;
+		if(drawLayer != null && (shapeActive || brushVisible)) {
+			Stroke originalStroke = g2d.getStroke();
 			g2d.setColor(Color.RED);
-			g2d.setStroke(new BasicStroke(3));
-			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
-			g2d.drawRect(mouseX * tileWidth, mouseY * tileHeight, tileWidth, tileHeight);
-			g2d.setColor(Color.RED.brighter());
-			g2d.fillRect(mouseX * tileWidth, mouseY * tileHeight, tileWidth, tileHeight);
-			g2d.setStroke(new BasicStroke(1));
+			g2d.setStroke(COLLISION_STROKE);
+			g2d.setComposite(HALF_TRANSPARENT);
+			if(shapeActive) {
+				// a preview of the line or rectangle being dragged out, only where it's in the clip
+				forEachShapeCell(firstColumn, firstRow, lastColumn, lastRow, (x, y) -> drawBrush(g2d, x, y));
+			}
+			else {
+				drawBrush(g2d, mouseX, mouseY);
+			}
+			g2d.setStroke(originalStroke);
 			g2d.setComposite(originalComposite);
 		}
 		
-		if(drawGrid) {
+		if(drawGrid && Math.min(cellWidth, cellHeight) > COLOR_BLOCK_SIZE) {
 			g2d.setColor(Color.BLACK);
+			int top = Math.max(0, clip.y);
+			int bottom = Math.min(rows * cellHeight, clip.y + clip.height);
+			int left = Math.max(0, clip.x);
+			int right = Math.min(columns * cellWidth, clip.x + clip.width);
 			// draw outer box
-			g2d.drawRect(0, 0, columns * tileWidth, rows * tileHeight);
+			g2d.drawRect(0, 0, columns * cellWidth, rows * cellHeight);
 			// draw vertical lines
-			for(int i = tileWidth; i < columns * tileWidth; i += tileWidth) {
-				g2d.drawLine(i, 0, i, rows * tileHeight);
+			for(int i = Math.max(1, firstColumn) * cellWidth; i <= right && i < columns * cellWidth; i += cellWidth) {
+				g2d.drawLine(i, top, i, bottom);
 			}
 			// draw horizontal lines
-			for(int i = tileHeight; i < rows * tileHeight; i += tileHeight) {
-				g2d.drawLine(0, i, columns * tileWidth, i);
+			for(int i = Math.max(1, firstRow) * cellHeight; i <= bottom && i < rows * cellHeight; i += cellHeight) {
+				g2d.drawLine(left, i, right, i);
 			}
 		}
 		
 	}
 		
 
+	private void drawBrush(Graphics2D g2d, int x, int y) {
+		if(drawLayer == DrawLayer.tileLayer) {
+			if(tileset != null && paintID != 0) {
+				tileset.drawTile(g2d, paintID, x * cellWidth, y * cellHeight, cellWidth, cellHeight);
+			}
+		}
+		else {
+			g2d.drawRect(x * cellWidth, y * cellHeight, cellWidth, cellHeight);
+			g2d.fillRect(x * cellWidth, y * cellHeight, cellWidth, cellHeight);
+		}
+	}
+
 	@Override
 	public void mouseDragged(MouseEvent e) {
-		drawToLayer(e);
+		continueDrawing(e);
 		setMousePosition(e);
-		repaint();
+		repaintDirty();
 	}
 
 
 	@Override
 	public void mouseClicked(MouseEvent e) {
-		drawToLayer(e);		
 	}
 
 	@Override
 	public void mousePressed(MouseEvent e) {
-		drawToLayer(e);		
+		// everything painted until the button is released is undone together
+		undoHistory.beginStroke();
+		startDrawing(e);
+		repaintDirty();
 	}
 
 	@Override
 	public void mouseMoved(MouseEvent e) {
 		setMousePosition(e);
-		repaint();
+		repaintDirty();
 	}
 	
 	@Override
-	public void mouseReleased(MouseEvent e) {			
+	public void mouseReleased(MouseEvent e) {
+		finishDrawing(e);
+		undoHistory.endAction();
+		repaintDirty();
 	}
 
 	@Override
@@ -428,32 +1245,6 @@ public class MapPanel extends JPanel implements MouseListener, MouseMotionListen
 
 	@Override
 	public void mouseExited(MouseEvent e) {				
-	}	
-	
-	public String mapToString() {
-		String output = "";
-		output += columns + "\n" +  rows + "\n";
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				output += tileLayer[y][x] + " ";
-			}
-			output += "\n";
-		}
-		
-		return output;
-	}
-	
-	public String collisionToString() {
-		String output = "";
-		output += columns + "\n" + rows + "\n";
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				output += collisionLayer[y][x] + " ";
-			}
-			output += "\n";
-		}
-		
-		return output;
 	}
 
 }
@@ -0,0 +1,223 @@
+package main;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JPanel;
+
+public class Minimap extends JPanel implements MouseListener, MouseMotionListener {
+
+	private static final long serialVersionUID = 1L;
+	
+	private static final int DEFAULT_WIDTH = 256;
+	private static final int DEFAULT_HEIGHT = 192;
+	
+	// bigger maps are sampled, one pixel per block of 2x2, 4x4, ... cells
+	private static final int MAXIMUM_OVERVIEW_SIZE = 2048;
+	
+	private static final int BACKGROUND = 0x404040;
+	private static final int COLLISION = 0xFF0000;
+	
+	private MapPanel mapPanel;
+	
+	// one pixel per map cell, kept up to date cell by cell as the map is edited.
+	// it may be larger than the map so that resizing the map does not always reallocate it
+	private BufferedImage overview;
+	private int shift;
+	
+	public Minimap(MapPanel mapPanel) {
+		this.mapPanel = mapPanel;
+		
+		addMouseListener(this);
+		addMouseMotionListener(this);
+	}
+	
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+	
+	/* redraw the whole overview, only needed when the map is replaced or resized */
+	public void rebuild() {
+		shift = getShift();
+		int width = getOverviewWidth();
+		int height = getOverviewHeight();
+		
+		if(overview == null || overview.getWidth() < width || overview.getHeight() < height) {
+			int capacityWidth = overview == null ? width : Math.max(width, overview.getWidth() * 3 / 2);
+			int capacityHeight = overview == null ? height : Math.max(height, overview.getHeight() * 3 / 2);
+			overview = new BufferedImage(capacityWidth, capacityHeight, BufferedImage.TYPE_INT_RGB);
+		}
+		Graphics2D g2d = overview.createGraphics();
+		g2d.setColor(new Color(BACKGROUND));
+		g2d.fillRect(0, 0, width, height);
+		g2d.dispose();
+		
+		// only the parts of the map holding something need drawing over the background
+		int step = 1 << shift;
+		mapPanel.getMap().forEachRegion((startX, startY, regionWidth, regionHeight) -> {
+			int firstX = (startX + step - 1) >> shift << shift;
+			int firstY = (startY + step - 1) >> shift << shift;
+			for(int y = firstY; y < startY + regionHeight; y += step) {
+				drawCells(firstX, startX + regionWidth, y);
+			}
+		});
+		repaint();
+	}
+	
+	public void updateCell(int x, int y) {
+		if(overview == null) { return; }
+		
+		if(shift != getShift() || getOverviewWidth() > overview.getWidth() || getOverviewHeight() > overview.getHeight()) {
+			rebuild();
+			return;
+		}
+		if(((x | y) & ((1 << shift) - 1)) != 0) { return; }
+		
+		overview.setRGB(x >> shift, y >> shift, cellColor(x, y));
+		repaint();
+	}
+	
+	/* bring a block of cells up to date with a single repaint */
+	public void updateRegion(int startX, int startY, int width, int height) {
+		if(overview == null) { return; }
+		
+		if(shift != getShift() || getOverviewWidth() > overview.getWidth() || getOverviewHeight() > overview.getHeight()) {
+			rebuild();
+			return;
+		}
+		int step = 1 << shift;
+		int firstX = (startX + step - 1) >> shift << shift;
+		int firstY = (startY + step - 1) >> shift << shift;
+		for(int y = firstY; y < startY + height; y += step) {
+			drawCells(firstX, startX + width, y);
+		}
+		repaint();
+	}
+	
+	/* the pixels of the sampled cells of a row from firstX up to endX, written to the overview in one go */
+	private void drawCells(int firstX, int endX, int y) {
+		if(firstX >= endX) { return; }
+		
+		int[] pixels = new int[((endX - firstX - 1) >> shift) + 1];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = cellColor(firstX + (i << shift), y) & 0xFFFFFF;
+		}
+		overview.getRaster().setDataElements(firstX >> shift, y >> shift, pixels.length, 1, pixels);
+	}
+	
+	private int getShift() {
+		int shift = 0;
+		while((mapPanel.getColumns() - 1 >> shift) >= MAXIMUM_OVERVIEW_SIZE || (mapPanel.getRows() - 1 >> shift) >= MAXIMUM_OVERVIEW_SIZE) {
+			shift++;
+		}
+		return shift;
+	}
+	
+	private int getOverviewWidth() {
+		return ((mapPanel.getColumns() - 1) >> shift) + 1;
+	}
+	
+	private int getOverviewHeight() {
+		return ((mapPanel.getRows() - 1) >> shift) + 1;
+	}
+	
+	/* the tile's average colour over the background, tinted red when the cell is blocked */
+	private int cellColor(int x, int y) {
+		int color = BACKGROUND;
+		int tile = mapPanel.getTile(x, y);
+		TileSet tileset = mapPanel.getTileSet();
+		if(tile != 0 && tileset != null) {
+			color = blend(BACKGROUND, tileset.getAverageColor(tile));
+		}
+		if(mapPanel.getCollision(x, y) != 0) {
+			color = blend(color, 0x80000000 | COLLISION);
+		}
+		return color;
+	}
+	
+	private static int blend(int background, int argb) {
+		int alpha = argb >>> 24;
+		int r = (((argb >> 16) & 0xFF) * alpha + ((background >> 16) & 0xFF) * (255 - alpha)) / 255;
+		int g = (((argb >> 8) & 0xFF) * alpha + ((background >> 8) & 0xFF) * (255 - alpha)) / 255;
+		int b = ((argb & 0xFF) * alpha + (background & 0xFF) * (255 - alpha)) / 255;
+		return r << 16 | g << 8 | b;
+	}
+	
+	/* pixels of minimap per overview pixel, keeping the map's aspect ratio */
+	private double getScale() {
+		return Math.min((double)getWidth() / getOverviewWidth(), (double)getHeight() / getOverviewHeight());
+	}
+	
+	private void scrollTo(MouseEvent e) {
+		if(overview == null) { return; }
+		
+		double scale = getScale();
+		int x = (int)(e.getX() / scale) << shift;
+		int y = (int)(e.getY() / scale) << shift;
+		if(x >= 0 && x < mapPanel.getColumns() && y >= 0 && y < mapPanel.getRows()) {
+			mapPanel.centerOnCell(x, y);
+		}
+	}
+	
+	@Override
+	public void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		
+		Graphics2D g2d = (Graphics2D)g;
+		
+		g2d.setColor(Color.GRAY);
+		g2d.fillRect(0, 0, getWidth(), getHeight());
+		
+		if(overview == null) { return; }
+		
+		int width = getOverviewWidth();
+		int height = getOverviewHeight();
+		double scale = getScale();
+		g2d.drawImage(overview, 0, 0, (int)(width * scale), (int)(height * scale), 0, 0, width, height, null);
+		
+		// outline the part of the map showing in the viewport
+		Rectangle visible = mapPanel.getVisibleCells();
+		g2d.setColor(Color.WHITE);
+		double cellScale = scale / (1 << shift);
+		g2d.drawRect((int)(visible.x * cellScale), (int)(visible.y * cellScale), (int)(visible.width * cellScale), (int)(visible.height * cellScale));
+	}
+
+	@Override
+	public void mouseDragged(MouseEvent e) {
+		scrollTo(e);
+	}
+
+	@Override
+	public void mousePressed(MouseEvent e) {
+		scrollTo(e);
+	}
+
+	@Override
+	public void mouseMoved(MouseEvent e) {
+	}
+
+	@Override
+	public void mouseClicked(MouseEvent e) {
+	}
+
+	@Override
+	public void mouseReleased(MouseEvent e) {
+	}
+
+	@Override
+	public void mouseEntered(MouseEvent e) {
+	}
+
+	@Override
+	public void mouseExited(MouseEvent e) {
+	}
+
+}
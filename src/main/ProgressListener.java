@@ -0,0 +1,10 @@
+package main;
+
+/* Told how far a long running job such as a save has got. */
+public interface ProgressListener {
+
+	/* returning false asks the job to stop, it then fails with an InterruptedIOException.
+	   jobs split across threads may call this from any of them */
+	boolean progress(long done, long total);
+
+}
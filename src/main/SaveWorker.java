@@ -0,0 +1,98 @@
+package main;
+
+import java.awt.Component;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/* Runs a save off the event thread with a progress dialog that can cancel it.
+   The file is written next to its destination and only moved into place once
+   it is complete, so a cancelled or failed save leaves any earlier file alone.
+   Whatever is saved has to be a snapshot, the map keeps being edited meanwhile. */
+public class SaveWorker extends SwingWorker<Void, Void> {
+
+	public interface SaveJob {
+		void save(Path path, ProgressListener listener) throws IOException;
+	}
+
+	private static final String PART_EXTENSION = ".part";
+
+	// how often the progress dialog is checked for cancel, progress can be slow to arrive
+	private static final int CANCEL_POLL_MILLIS = 100;
+
+	private final Component parent;
+	private final Path path;
+	private final Path partPath;
+	private final SaveJob job;
+
+	private final ProgressMonitor monitor;
+	private final Timer cancelPoll;
+
+	public SaveWorker(Component parent, Path path, SaveJob job) {
+		this.parent = parent;
+		this.path = path;
+		this.job = job;
+
+		partPath = path.resolveSibling(path.getFileName() + PART_EXTENSION);
+		monitor = new ProgressMonitor(parent, "Saving " + path.getFileName(), null, 0, 100);
+
+		// property changes arrive on the event thread, where the monitor has to be used
+		addPropertyChangeListener(e -> {
+			if("progress".equals(e.getPropertyName())) {
+				monitor.setProgress(getProgress());
+			}
+		});
+		// interrupting the worker stops a write that is waiting on the disk
+		cancelPoll = new Timer(CANCEL_POLL_MILLIS, e -> {
+			if(monitor.isCanceled() && !isDone()) {
+				cancel(true);
+			}
+		});
+		cancelPoll.start();
+	}
+
+	@Override
+	protected Void doInBackground() throws IOException {
+		boolean saved = false;
+		try {
+			job.save(partPath, (done, total) -> {
+				setProgress((int)(done * 100 / Math.max(1, total)));
+				return !isCancelled();
+			});
+			if(!isCancelled()) {
+				Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+				saved = true;
+			}
+		}
+		finally {
+			if(!saved) {
+				Files.deleteIfExists(partPath);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected void done() {
+		cancelPoll.stop();
+		monitor.close();
+		if(isCancelled()) { return; }
+
+		try {
+			get();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			JOptionPane.showMessageDialog(parent, "Could not save " + path.getFileName() + ": " + e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
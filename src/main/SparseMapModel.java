@@ -0,0 +1,337 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/* A map stored as a hash of 64x64 cell chunks keyed by chunk coordinates.
+   Chunks are only allocated once something is painted in them and are dropped
+   again when they become empty, so memory follows the painted area rather
+   than the size of the map. */
+public class SparseMapModel implements MapModel {
+
+	private static final int CHUNK_SHIFT = 6;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final int MAXIMUM_SHORT_ID = 0xFFFF;
+
+	private static class Chunk {
+		// exactly one of these holds the tiles, indexed x + y * CHUNK_SIZE
+		short[] shortTiles = new short[CHUNK_SIZE * CHUNK_SIZE];
+		int[] intTiles;
+
+		// one long per row of the chunk
+		long[] collision = new long[CHUNK_SIZE];
+
+		// cells holding a tile or a collision
+		int used;
+
+		// set once a snapshot holds this chunk too, it is copied before the next write
+		boolean shared;
+
+		Chunk copy() {
+			Chunk chunk = new Chunk();
+			chunk.shortTiles = shortTiles != null ? shortTiles.clone() : null;
+			chunk.intTiles = intTiles != null ? intTiles.clone() : null;
+			chunk.collision = collision.clone();
+			chunk.used = used;
+			return chunk;
+		}
+
+		int getTile(int index) {
+			return intTiles != null ? intTiles[index] : shortTiles[index] & 0xFFFF;
+		}
+
+		boolean isUsed(int index) {
+			return getTile(index) != 0 || (collision[index >>> CHUNK_SHIFT] >>> index & 1) != 0;
+		}
+	}
+
+	private int columns;
+	private int rows;
+
+	private Map<Integer, Chunk> chunks;
+
+	public SparseMapModel(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+
+		chunks = new HashMap<>();
+	}
+
+	private static int chunkKey(int chunkX, int chunkY) {
+		return chunkY << 16 | chunkX;
+	}
+
+	private Chunk getChunk(int x, int y) {
+		return chunks.get(chunkKey(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT));
+	}
+
+	/* the chunk holding a cell, ready to be written to. returns null if there
+	   is no chunk there and create is false */
+	private Chunk getWritableChunk(int x, int y, boolean create) {
+		int key = chunkKey(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT);
+		Chunk chunk = chunks.get(key);
+		if(chunk == null) {
+			if(!create) { return null; }
+			chunk = new Chunk();
+			chunks.put(key, chunk);
+		}
+		else if(chunk.shared) {
+			chunk = chunk.copy();
+			chunks.put(key, chunk);
+		}
+		return chunk;
+	}
+
+	@Override
+	public int getColumns() {
+		return columns;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getTile(int x, int y) {
+		Chunk chunk = getChunk(x, y);
+		if(chunk == null) {
+			return 0;
+		}
+		return chunk.getTile((x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_SHIFT));
+	}
+
+	@Override
+	public void setTile(int x, int y, int id) {
+		Chunk chunk = getWritableChunk(x, y, id != 0);
+		if(chunk == null) { return; }
+
+		int index = (x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_SHIFT);
+		boolean wasUsed = chunk.isUsed(index);
+		if(chunk.intTiles == null && (id < 0 || id > MAXIMUM_SHORT_ID)) {
+			chunk.intTiles = new int[CHUNK_SIZE * CHUNK_SIZE];
+			for(int i = 0; i < chunk.intTiles.length; i++) {
+				chunk.intTiles[i] = chunk.shortTiles[i] & 0xFFFF;
+			}
+			chunk.shortTiles = null;
+		}
+		if(chunk.intTiles != null) {
+			chunk.intTiles[index] = id;
+		}
+		else {
+			chunk.shortTiles[index] = (short)id;
+		}
+		updateUsed(x, y, chunk, wasUsed, chunk.isUsed(index));
+	}
+
+	@Override
+	public int getCollision(int x, int y) {
+		Chunk chunk = getChunk(x, y);
+		if(chunk == null) {
+			return 0;
+		}
+		return (int)(chunk.collision[y & CHUNK_MASK] >>> x) & 1;
+	}
+
+	@Override
+	public void setCollision(int x, int y, int value) {
+		Chunk chunk = getWritableChunk(x, y, value != 0);
+		if(chunk == null) { return; }
+
+		int index = (x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_SHIFT);
+		boolean wasUsed = chunk.isUsed(index);
+		if(value != 0) {
+			chunk.collision[y & CHUNK_MASK] |= 1L << x;
+		}
+		else {
+			chunk.collision[y & CHUNK_MASK] &= ~(1L << x);
+		}
+		updateUsed(x, y, chunk, wasUsed, chunk.isUsed(index));
+	}
+
+	private void updateUsed(int x, int y, Chunk chunk, boolean wasUsed, boolean isUsed) {
+		if(wasUsed == isUsed) { return; }
+
+		chunk.used += isUsed ? 1 : -1;
+		if(chunk.used == 0) {
+			chunks.remove(chunkKey(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT));
+		}
+	}
+
+	@Override
+	public void getTileRow(int y, int[] row) {
+		int chunkY = y >> CHUNK_SHIFT;
+		int offset = (y & CHUNK_MASK) << CHUNK_SHIFT;
+		for(int start = 0; start < columns; start += CHUNK_SIZE) {
+			int end = Math.min(columns, start + CHUNK_SIZE);
+			Chunk chunk = chunks.get(chunkKey(start >> CHUNK_SHIFT, chunkY));
+			for(int x = start; x < end; x++) {
+				row[x] = chunk == null ? 0 : chunk.getTile(offset + (x & CHUNK_MASK));
+			}
+		}
+	}
+
+	@Override
+	public void setTileRow(int y, int[] row) {
+		for(int x = 0; x < columns; x++) {
+			setTile(x, y, row[x]);
+		}
+	}
+
+	@Override
+	public void getTileColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			column[y] = getTile(x, y);
+		}
+	}
+
+	@Override
+	public void setTileColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			setTile(x, y, column[y]);
+		}
+	}
+
+	@Override
+	public void getCollisionRow(int y, int[] row) {
+		int chunkY = y >> CHUNK_SHIFT;
+		for(int start = 0; start < columns; start += CHUNK_SIZE) {
+			int end = Math.min(columns, start + CHUNK_SIZE);
+			Chunk chunk = chunks.get(chunkKey(start >> CHUNK_SHIFT, chunkY));
+			long bits = chunk == null ? 0 : chunk.collision[y & CHUNK_MASK];
+			for(int x = start; x < end; x++) {
+				row[x] = (int)(bits >>> x) & 1;
+			}
+		}
+	}
+
+	@Override
+	public void setCollisionRow(int y, int[] row) {
+		for(int x = 0; x < columns; x++) {
+			setCollision(x, y, row[x]);
+		}
+	}
+
+	@Override
+	public void getCollisionColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			column[y] = getCollision(x, y);
+		}
+	}
+
+	@Override
+	public void setCollisionColumn(int x, int[] column) {
+		for(int y = 0; y < rows; y++) {
+			setCollision(x, y, column[y]);
+		}
+	}
+
+	@Override
+	public void clear() {
+		chunks.clear();
+	}
+
+	/* only the allocated chunks are visited, whatever the size of the map */
+	@Override
+	public boolean resize(int columns, int rows, Anchor anchor) {
+		int offsetX = anchor.offsetX(this.columns, columns);
+		int offsetY = anchor.offsetY(this.rows, rows);
+
+		Map<Integer, Chunk> old = chunks;
+		this.columns = columns;
+		this.rows = rows;
+
+		if(offsetX == 0 && offsetY == 0) {
+			// drop whatever now lies outside the map
+			List<int[]> outside = new ArrayList<>();
+			for(Iterator<Map.Entry<Integer, Chunk>> i = old.entrySet().iterator(); i.hasNext();) {
+				int key = i.next().getKey();
+				int startX = (key & 0xFFFF) << CHUNK_SHIFT;
+				int startY = (key >>> 16) << CHUNK_SHIFT;
+				if(startX >= columns || startY >= rows) {
+					i.remove();
+				}
+				else if(startX + CHUNK_SIZE > columns || startY + CHUNK_SIZE > rows) {
+					outside.add(new int[] { startX, startY });
+				}
+			}
+			for(int[] start : outside) {
+				for(int y = start[1]; y < start[1] + CHUNK_SIZE; y++) {
+					for(int x = start[0]; x < start[0] + CHUNK_SIZE; x++) {
+						if(x >= columns || y >= rows) {
+							setTile(x, y, 0);
+							setCollision(x, y, 0);
+						}
+					}
+				}
+			}
+			return true;
+		}
+
+		chunks = new HashMap<>();
+		for(Map.Entry<Integer, Chunk> entry : old.entrySet()) {
+			int startX = (entry.getKey() & 0xFFFF) << CHUNK_SHIFT;
+			int startY = (entry.getKey() >>> 16) << CHUNK_SHIFT;
+			Chunk chunk = entry.getValue();
+			for(int y = 0; y < CHUNK_SIZE; y++) {
+				int newY = startY + y + offsetY;
+				if(newY < 0 || newY >= rows) { continue; }
+				for(int x = 0; x < CHUNK_SIZE; x++) {
+					int newX = startX + x + offsetX;
+					if(newX < 0 || newX >= columns) { continue; }
+					int index = x + (y << CHUNK_SHIFT);
+					int id = chunk.getTile(index);
+					if(id != 0) {
+						setTile(newX, newY, id);
+					}
+					if((chunk.collision[y] >>> x & 1) != 0) {
+						setCollision(newX, newY, 1);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasData(int x, int y, int width, int height) {
+		int lastChunkX = (x + width - 1) >> CHUNK_SHIFT;
+		int lastChunkY = (y + height - 1) >> CHUNK_SHIFT;
+		for(int chunkY = y >> CHUNK_SHIFT; chunkY <= lastChunkY; chunkY++) {
+			for(int chunkX = x >> CHUNK_SHIFT; chunkX <= lastChunkX; chunkX++) {
+				if(chunks.containsKey(chunkKey(chunkX, chunkY))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRegion(RegionVisitor visitor) {
+		// copy the keys so the visitor may edit the map
+		Integer[] keys = chunks.keySet().toArray(new Integer[0]);
+		for(int key : keys) {
+			int startX = (key & 0xFFFF) << CHUNK_SHIFT;
+			int startY = (key >>> 16) << CHUNK_SHIFT;
+			visitor.visit(startX, startY, Math.min(CHUNK_SIZE, columns - startX), Math.min(CHUNK_SIZE, rows - startY));
+		}
+	}
+
+	/* the chunks are shared rather than copied, whichever side writes to a chunk first copies it */
+	@Override
+	public MapModel snapshot() {
+		SparseMapModel snapshot = new SparseMapModel(columns, rows);
+		for(Chunk chunk : chunks.values()) {
+			chunk.shared = true;
+		}
+		snapshot.chunks.putAll(chunks);
+		return snapshot;
+	}
+
+}
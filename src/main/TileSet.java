@@ -5,11 +5,13 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 public class TileSet extends JPanel implements MouseListener {
 
@@ -23,11 +25,11 @@ public class TileSet extends JPanel implements MouseListener {
 	
 	private final int DEFAULT_PADDING = 5;
 	
-	private BufferedImage tileset;
-	private BufferedImage[][] tiles;
+	private TileSheet sheet;
+	// the distinct tiles with something in them, in the order they are shown
+	private int[] paletteIds;
 	
 	private int columns;
-	private int rows;
 	
 	private int panelWidth;
 	private int panelHeight;
@@ -39,7 +41,6 @@ public class TileSet extends JPanel implements MouseListener {
 	private int paddingHeight;
 	
 	private MapPanel mapPanel;
-	private BufferedImage paintbrush;
 	private int px;
 	private int py;
 	
@@ -64,38 +65,84 @@ public class TileSet extends JPanel implements MouseListener {
 	}
 	
 	public void loadTileset(int tileWidth, int tileHeight, BufferedImage tileset) {
-		this.tileWidth = tileWidth;
-		this.tileHeight = tileHeight;
-		this.tileset = tileset;
-		
-		columns = tileset.getWidth() / tileWidth;
-		rows = tileset.getHeight() / tileHeight;
-		
-		tiles = new BufferedImage[rows][columns];
+		setSheet(TileSheet.slice(tileWidth, tileHeight, tileset));
+	}
+	
+	/* switch to a sheet that has been sliced already, for example in the background */
+	public void setSheet(TileSheet sheet) {
+		this.sheet = sheet;
+		tileWidth = sheet.getTileWidth();
+		tileHeight = sheet.getTileHeight();
+		columns = sheet.getColumns();
+		paletteIds = sheet.getPaletteIds();
 		
+		int paletteRows = (paletteIds.length + columns - 1) / columns;
 		panelWidth = columns * tileWidth + paddingWidth * columns;
-		panelHeight = rows * tileHeight + paddingHeight * rows;
-		
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				BufferedImage image = tileset.getSubimage(x * tileWidth, y * tileHeight, tileWidth, tileHeight);
-				tiles[y][x] = image;
-			}
-		}
+		panelHeight = paletteRows * tileHeight + paddingHeight * paletteRows;
 		
+		mapPanel.tilesetChanged(this);
 		revalidate();
 		repaint();
 	}
 	
-	private void applyPaintBrush(int x, int y) {		
+	public int getAverageColor(int id) {
+		if(sheet == null) { return 0; }
+		return sheet.getAverageColor(id);
+	}
+	
+	/* the average alpha of a tile, 0 if it is fully transparent and 1 only if it is fully solid.
+	   -1 for an id outside the tileset */
+	public float getCoverage(int id) {
+		if(sheet == null) { return -1; }
+		return sheet.getCoverage(id);
+	}
+	
+	public int getTileCount() {
+		if(sheet == null) { return 0; }
+		return sheet.getTileCount();
+	}
+	
+	/* true if drawing the tile would draw nothing, because it is fully transparent or not in the tileset */
+	public boolean isEmpty(int id) {
+		return sheet == null || sheet.isEmpty(id);
+	}
+	
+	/* the first id in the tileset with the same pixels as this one */
+	public int getCanonicalId(int id) {
+		if(sheet == null) { return id; }
+		return sheet.getCanonicalId(id);
+	}
+	
+	public void drawTile(Graphics g, int id, int x, int y, int width, int height) {
+		if(sheet != null) {
+			sheet.drawTile(g, id, x, y, width, height);
+		}
+	}
+	
+	/* the id of the tile shown at a point in the palette, -1 if there is none there */
+	private int getPaletteId(int x, int y) {
 		x = x / (tileWidth + DEFAULT_PADDING);
 		y = y / (tileHeight + DEFAULT_PADDING);
-		if(x >= 0 && x < columns && y >= 0 && y < rows) {
-			int id = x + y * columns;
-			px = x;
-			py = y;
-			paintbrush = tiles[y][x];
-			mapPanel.setPaintbrush(paintbrush, id);
+		int index = x + y * columns;
+		if(paletteIds == null || x < 0 || x >= columns || y < 0 || index >= paletteIds.length) { return -1; }
+		return paletteIds[index];
+	}
+	
+	private void applyPaintBrush(int x, int y) {		
+		int id = getPaletteId(x, y);
+		if(id >= 0) {
+			px = x / (tileWidth + DEFAULT_PADDING);
+			py = y / (tileHeight + DEFAULT_PADDING);
+			mapPanel.setPaintbrush(id);
+		}
+		repaint();
+	}
+	
+	/* a right click switches a tile between blocking and passable for the generated collision layer */
+	private void toggleCollisionRule(int x, int y) {
+		int id = getPaletteId(x, y);
+		if(id >= 0) {
+			mapPanel.setTileBlocks(id, !mapPanel.getCollisionRules().blocks(id));
 		}
 		repaint();
 	}
@@ -109,15 +156,38 @@ public class TileSet extends JPanel implements MouseListener {
 		g2d.setColor(Color.GRAY);
 		g2d.fillRect(0, 0, getWidth(), getHeight());
 		
-		for(int y = 0; y < rows; y++) {
-			for(int x = 0; x < columns; x++) {
-				BufferedImage image = tiles[y][x];
-				if(image != null) {
-					g2d.drawImage(image, x * (tileWidth + DEFAULT_PADDING), y * (tileHeight + DEFAULT_PADDING), tileWidth, tileHeight, null);
+		if(sheet == null) { return; }
+		
+		// only distinct tiles with something in them are shown, packed together. only the
+		// rows the clip touches are drawn, so scrolling through a huge sheet stays cheap
+		Rectangle clip = g2d.getClipBounds();
+		int cellWidth = tileWidth + DEFAULT_PADDING;
+		int cellHeight = tileHeight + DEFAULT_PADDING;
+		int startX = 0;
+		int endX = columns;
+		int startY = 0;
+		int endY = (paletteIds.length + columns - 1) / columns;
+		if(clip != null) {
+			startX = Math.max(startX, clip.x / cellWidth);
+			endX = Math.min(endX, (clip.x + clip.width + cellWidth - 1) / cellWidth);
+			startY = Math.max(startY, clip.y / cellHeight);
+			endY = Math.min(endY, (clip.y + clip.height + cellHeight - 1) / cellHeight);
+		}
+		CollisionRules rules = mapPanel.getCollisionRules();
+		for(int y = startY; y < endY; y++) {
+			for(int x = startX; x < endX; x++) {
+				int i = x + y * columns;
+				if(i >= paletteIds.length) { break; }
+				
+				drawTile(g2d, paletteIds[i], x * cellWidth, y * cellHeight, tileWidth, tileHeight);
+				// tiles that don't block are marked in their corner
+				if(paletteIds[i] != 0 && !rules.blocks(paletteIds[i])) {
+					g2d.setColor(Color.GREEN);
+					g2d.fillRect(x * cellWidth, y * cellHeight, 6, 6);
 				}
 			}
 		}
-		if(tileset != null) {
+		if(paletteIds.length > 0) {
 			g2d.setColor(Color.CYAN);
 			g2d.setStroke(new BasicStroke(3));
 			g2d.drawRect(px * (tileWidth + DEFAULT_PADDING), py * (tileHeight + DEFAULT_PADDING), tileWidth, tileHeight);
@@ -128,6 +198,7 @@ public class TileSet extends JPanel implements MouseListener {
 
 	@Override
 	public void mouseClicked(MouseEvent e) {
+		if(SwingUtilities.isRightMouseButton(e)) { return; }
 		int x = e.getX();
 		int y = e.getY();
 		applyPaintBrush(x, y);
@@ -137,6 +208,10 @@ public class TileSet extends JPanel implements MouseListener {
 	public void mousePressed(MouseEvent e) {
 		int x = e.getX();
 		int y = e.getY();
+		if(SwingUtilities.isRightMouseButton(e)) {
+			toggleCollisionRule(x, y);
+			return;
+		}
 		applyPaintBrush(x, y);
 	}
 
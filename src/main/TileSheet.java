@@ -0,0 +1,308 @@
+package main;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/* The tiles of a tileset, sliced out of the sheet and ready to draw.
+   The sheet is handed over in bands of whole tile rows, so a sheet too large
+   to hold in memory can be read a part at a time, and nothing here touches
+   Swing, so it can all be done off the event thread.
+
+   The pixels of every tile are gone over once, in parallel across the tiles
+   of a band, averaging them down to one colour, measuring how much of the
+   tile is covered and hashing them. Every id is then given the first id with
+   exactly the same pixels, only tiles whose hashes match are compared pixel
+   by pixel, and fully transparent tiles are flagged as empty. Id 0 stands for
+   no tile in a map, so whatever its pixels are it is treated as empty and
+   never stands in for another. The atlas holds each distinct tile with
+   something in it once. Each is copied into it as its band comes in and
+   later tiles are compared against it, so besides the band being added
+   only the distinct tiles are ever held. */
+public class TileSheet {
+
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int columns;
+	private final int rows;
+
+	private int[] averageColors;
+	private float[] coverage;
+
+	// for every id, the first id with the same pixels and where its pixels are in the atlas, -1 if it is empty
+	private int[] canonicalIds;
+	private int[] slots;
+
+	// the distinct tiles with something in them, in the order they were found
+	private int[] paletteIds;
+	private int distinct;
+
+	private BufferedImage atlas;
+	private BufferedImage[] mipLevels;
+	private int atlasColumns;
+
+	// only needed while the bands are being added. the ids with each hash are chained through nextWithHash
+	private Map<Long, Integer> firstWithHash;
+	private int[] nextWithHash;
+	// the atlas as it is filled in, as many tiles across as the sheet. it grows by rows of tiles
+	private int[] atlasPixels;
+	private int atlasStride;
+
+	public TileSheet(int tileWidth, int tileHeight, int columns, int rows) {
+		if(columns <= 0 || rows <= 0) {
+			throw new IllegalArgumentException("The tiles are larger than the tileset");
+		}
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.columns = columns;
+		this.rows = rows;
+
+		int tiles = columns * rows;
+		averageColors = new int[tiles];
+		coverage = new float[tiles];
+		canonicalIds = new int[tiles];
+		slots = new int[tiles];
+		paletteIds = new int[tiles];
+		firstWithHash = new HashMap<>();
+		nextWithHash = new int[tiles];
+		atlasStride = columns * tileWidth;
+		atlasPixels = new int[atlasStride * tileHeight];
+	}
+
+	/* a sheet that is already in memory, as one band */
+	public static TileSheet slice(int tileWidth, int tileHeight, BufferedImage image) {
+		TileSheet sheet = new TileSheet(tileWidth, tileHeight, image.getWidth() / tileWidth, image.getHeight() / tileHeight);
+		sheet.addBand(image, 0);
+		sheet.finish();
+		return sheet;
+	}
+
+	/* add the tile rows in band, the first of which is firstRow */
+	public void addBand(BufferedImage band, int firstRow) {
+		int bandRows = Math.min(rows - firstRow, band.getHeight() / tileHeight);
+		int first = firstRow * columns;
+		int pixels = tileWidth * tileHeight;
+
+		long[] hashes = new long[bandRows * columns];
+		int[][] tilePixels = new int[bandRows * columns][];
+		IntStream.range(0, bandRows * columns).parallel().forEach(i -> {
+			int[] tile = band.getRGB((i % columns) * tileWidth, (i / columns) * tileHeight, tileWidth, tileHeight, null, 0, tileWidth);
+			long a = 0, r = 0, g = 0, b = 0;
+			long hash = 0xCBF29CE484222325L;
+			for(int argb : tile) {
+				hash = (hash ^ argb) * 0x100000001B3L;
+				int alpha = argb >>> 24;
+				a += alpha;
+				r += ((argb >> 16) & 0xFF) * alpha;
+				g += ((argb >> 8) & 0xFF) * alpha;
+				b += (argb & 0xFF) * alpha;
+			}
+			if(a > 0) {
+				averageColors[first + i] = (int)(a / pixels) << 24 | (int)(r / a) << 16 | (int)(g / a) << 8 | (int)(b / a);
+				tilePixels[i] = tile;
+			}
+			// only exactly 1 when every pixel is opaque, however large the tile
+			coverage[first + i] = a == (long)pixels * 255 ? 1 : Math.min(a / (pixels * 255f), Math.nextDown(1f));
+			hashes[i] = hash;
+		});
+
+		for(int i = 0; i < hashes.length; i++) {
+			addTile(first + i, hashes[i], tilePixels[i]);
+		}
+	}
+
+	/* give a tile its canonical id and slot, pixels is null for an empty tile */
+	private void addTile(int id, long hash, int[] pixels) {
+		canonicalIds[id] = id;
+		slots[id] = -1;
+		if(pixels == null || id == 0) { return; }
+
+		nextWithHash[id] = -1;
+		Integer first = firstWithHash.putIfAbsent(hash, id);
+		if(first != null) {
+			int last = first;
+			for(int other = first; other != -1; other = nextWithHash[other]) {
+				if(atlasHolds(slots[other], pixels)) {
+					canonicalIds[id] = other;
+					slots[id] = slots[other];
+					return;
+				}
+				last = other;
+			}
+			nextWithHash[last] = id;
+		}
+		slots[id] = distinct;
+		paletteIds[distinct++] = id;
+		copyToAtlas(slots[id], pixels);
+	}
+
+	private int atlasOffset(int slot) {
+		return (slot / columns) * tileHeight * atlasStride + (slot % columns) * tileWidth;
+	}
+
+	private boolean atlasHolds(int slot, int[] pixels) {
+		int offset = atlasOffset(slot);
+		for(int y = 0; y < tileHeight; y++, offset += atlasStride) {
+			for(int x = 0; x < tileWidth; x++) {
+				if(atlasPixels[offset + x] != pixels[y * tileWidth + x]) { return false; }
+			}
+		}
+		return true;
+	}
+
+	private void copyToAtlas(int slot, int[] pixels) {
+		int offset = atlasOffset(slot);
+		if(offset + (tileHeight - 1) * atlasStride + tileWidth > atlasPixels.length) {
+			// half as many rows again, never more than the sheet has
+			int atlasRows = atlasPixels.length / (atlasStride * tileHeight);
+			atlasRows = Math.min(rows, Math.max(atlasRows + 1, atlasRows + atlasRows / 2));
+			atlasPixels = Arrays.copyOf(atlasPixels, atlasRows * tileHeight * atlasStride);
+		}
+		for(int y = 0; y < tileHeight; y++, offset += atlasStride) {
+			System.arraycopy(pixels, y * tileWidth, atlasPixels, offset, tileWidth);
+		}
+	}
+
+	/* once every band is in, turn the distinct tiles into an image in the screen's native
+	   format so java2d can accelerate it, and scale it down for drawing tiles small */
+	public void finish() {
+		paletteIds = Arrays.copyOf(paletteIds, distinct);
+		// fewer distinct tiles than the sheet is wide are all in the first row
+		atlasColumns = Math.max(1, Math.min(columns, distinct));
+		int atlasRows = Math.max(1, (distinct + columns - 1) / columns);
+
+		DataBufferInt buffer = new DataBufferInt(atlasPixels, atlasRows * tileHeight * atlasStride);
+		WritableRaster raster = Raster.createPackedRaster(buffer, atlasStride, atlasRows * tileHeight, atlasStride,
+				new int[] { 0xFF0000, 0xFF00, 0xFF, 0xFF000000 }, null);
+		BufferedImage pixels = new BufferedImage(ColorModel.getRGBdefault(), raster, false, null)
+				.getSubimage(0, 0, atlasColumns * tileWidth, atlasRows * tileHeight);
+		atlas = toCompatibleImage(pixels);
+		mipLevels = createMipLevels(atlasColumns, atlasRows);
+
+		firstWithHash = null;
+		nextWithHash = null;
+		atlasPixels = null;
+	}
+
+	/* the image itself when there is no screen to match */
+	private static BufferedImage toCompatibleImage(BufferedImage image) {
+		if(GraphicsEnvironment.isHeadless()) { return image; }
+
+		BufferedImage compatible = createCompatibleImage(image.getWidth(), image.getHeight());
+		Graphics2D g2d = compatible.createGraphics();
+		g2d.setComposite(AlphaComposite.Src);
+		g2d.drawImage(image, 0, 0, null);
+		g2d.dispose();
+		return compatible;
+	}
+
+	private static BufferedImage createCompatibleImage(int width, int height) {
+		if(GraphicsEnvironment.isHeadless()) {
+			return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		}
+		GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+				.getDefaultScreenDevice().getDefaultConfiguration();
+		return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+	}
+
+	/* halve the atlas repeatedly until the tiles are two pixels across. level 0 is the atlas itself */
+	private BufferedImage[] createMipLevels(int atlasColumns, int atlasRows) {
+		int levels = 1;
+		while((tileWidth >> levels) >= 2 && (tileHeight >> levels) >= 2) {
+			levels++;
+		}
+
+		BufferedImage[] mipLevels = new BufferedImage[levels];
+		mipLevels[0] = atlas;
+		for(int i = 1; i < levels; i++) {
+			BufferedImage previous = mipLevels[i - 1];
+			BufferedImage level = createCompatibleImage(atlasColumns * (tileWidth >> i), atlasRows * (tileHeight >> i));
+			Graphics2D g2d = level.createGraphics();
+			g2d.setComposite(AlphaComposite.Src);
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(previous, 0, 0, level.getWidth(), level.getHeight(), null);
+			g2d.dispose();
+			mipLevels[i] = level;
+		}
+		return mipLevels;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getTileCount() {
+		return columns * rows;
+	}
+
+	public int getAverageColor(int id) {
+		if(id < 0 || id >= averageColors.length) { return 0; }
+		return averageColors[id];
+	}
+
+	/* the average alpha of a tile, 0 if it is fully transparent and 1 only if it is fully solid.
+	   -1 for an id outside the tileset */
+	public float getCoverage(int id) {
+		if(id < 0 || id >= coverage.length) { return -1; }
+		return coverage[id];
+	}
+
+	/* true if drawing the tile would draw nothing, because it is fully transparent or not in the tileset */
+	public boolean isEmpty(int id) {
+		return id < 0 || id >= slots.length || slots[id] < 0;
+	}
+
+	/* the first id in the tileset with the same pixels as this one */
+	public int getCanonicalId(int id) {
+		if(id < 0 || id >= canonicalIds.length) { return id; }
+		return canonicalIds[id];
+	}
+
+	/* the distinct tiles with something in them */
+	public int[] getPaletteIds() {
+		return paletteIds;
+	}
+
+	/* draw a tile straight from its source rectangle in the atlas, using the
+	   smallest mip level that is still at least as large as the target */
+	public void drawTile(Graphics g, int id, int x, int y, int width, int height) {
+		if(isEmpty(id)) { return; }
+
+		int level = 0;
+		while(level + 1 < mipLevels.length && (tileWidth >> (level + 1)) >= width && (tileHeight >> (level + 1)) >= height) {
+			level++;
+		}
+		int levelWidth = tileWidth >> level;
+		int levelHeight = tileHeight >> level;
+
+		int sx = (slots[id] % atlasColumns) * levelWidth;
+		int sy = (slots[id] / atlasColumns) * levelHeight;
+		g.drawImage(mipLevels[level], x, y, x + width, y + height, sx, sy, sx + levelWidth, sy + levelHeight, null);
+	}
+
+}
@@ -0,0 +1,136 @@
+package main;
+
+import java.awt.Component;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/* Reads and slices a tileset off the event thread with a progress dialog that can cancel it.
+   A sheet is read in bands of whole tile rows with region reads, so one too
+   large to decode in one go is never held in memory whole. Formats like PNG
+   have to be decoded from the top for every band, so sheets that fit
+   comfortably are read in a single band. Once the sheet is sliced it is
+   handed to the tileset on the event thread, and then onLoaded is run. */
+public class TilesetLoader extends SwingWorker<TileSheet, Void> {
+
+	// pixels read at a time, a band of 64M ARGB pixels takes 256MB
+	private static final long BAND_PIXELS = 64L * 1024 * 1024;
+
+	// how often the progress dialog is checked for cancel, a read can take a while between progress updates
+	private static final int CANCEL_POLL_MILLIS = 100;
+
+	private final Component parent;
+	private final File file;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final TileSet tileset;
+	private final Runnable onLoaded;
+
+	private final ProgressMonitor monitor;
+	private final Timer cancelPoll;
+	private volatile ImageReader reader;
+
+	public TilesetLoader(Component parent, File file, int tileWidth, int tileHeight, TileSet tileset, Runnable onLoaded) {
+		this.parent = parent;
+		this.file = file;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.tileset = tileset;
+		this.onLoaded = onLoaded;
+
+		monitor = new ProgressMonitor(parent, "Loading " + file.getName(), null, 0, 100);
+
+		// property changes arrive on the event thread, where the monitor has to be used
+		addPropertyChangeListener(e -> {
+			if("progress".equals(e.getPropertyName())) {
+				monitor.setProgress(getProgress());
+			}
+		});
+		// aborting the reader stops it in the middle of a band
+		cancelPoll = new Timer(CANCEL_POLL_MILLIS, e -> {
+			if(monitor.isCanceled() && !isDone()) {
+				cancel(true);
+				ImageReader current = reader;
+				if(current != null) {
+					current.abort();
+				}
+			}
+		});
+		cancelPoll.start();
+	}
+
+	@Override
+	protected TileSheet doInBackground() throws IOException {
+		try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if(input == null) {
+				throw new IOException("Could not open " + file.getName());
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) {
+				throw new IOException(file.getName() + " is not an image that can be read");
+			}
+			ImageReader reader = readers.next();
+			this.reader = reader;
+			try {
+				reader.setInput(input, false, true);
+				int columns = reader.getWidth(0) / tileWidth;
+				int rows = reader.getHeight(0) / tileHeight;
+				if(columns <= 0 || rows <= 0) {
+					throw new IOException("The tiles are larger than " + file.getName());
+				}
+
+				TileSheet sheet = new TileSheet(tileWidth, tileHeight, columns, rows);
+				int bandRows = (int)Math.max(1, Math.min(rows, BAND_PIXELS / ((long)columns * tileWidth * tileHeight)));
+				int bands = (rows + bandRows - 1) / bandRows;
+				for(int band = 0; band < bands; band++) {
+					int firstRow = band * bandRows;
+					int height = Math.min(bandRows, rows - firstRow) * tileHeight;
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(new Rectangle(0, firstRow * tileHeight, columns * tileWidth, height));
+					BufferedImage image = reader.read(0, param);
+					if(isCancelled()) { return null; }
+					setProgress(band * 100 / bands + 50 / bands);
+
+					sheet.addBand(image, firstRow);
+					setProgress((band + 1) * 100 / bands);
+				}
+				sheet.finish();
+				return sheet;
+			}
+			finally {
+				this.reader = null;
+				reader.dispose();
+			}
+		}
+	}
+
+	@Override
+	protected void done() {
+		cancelPoll.stop();
+		monitor.close();
+		if(isCancelled()) { return; }
+
+		try {
+			tileset.setSheet(get());
+			onLoaded.run();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			JOptionPane.showMessageDialog(parent, "Could not load " + file.getName() + ": " + e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
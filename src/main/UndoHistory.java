@@ -0,0 +1,378 @@
+package main;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/* Undo and redo for a map panel.
+   Edits are grouped into actions, a stroke of the mouse from press to release,
+   a fill or a resize. A fill only keeps where its cells are, the tiles in it all
+   change the same way and collision is only ever set or cleared, so it takes
+   half the memory of a stroke. The cells an action changed are kept as
+   packed ints in a single ring buffer, which grows as needed up to a memory
+   limit and then drops the oldest actions to make room. Nothing ever stores a
+   copy of the whole map. */
+public class UndoHistory {
+
+	public static final int DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	private static final int TILE_LAYER = 0;
+	private static final int COLLISION_LAYER = 1;
+
+	// what happened to a cell of a fill
+	private static final int TILE_CHANGED = 1;
+	private static final int COLLISION_CHANGED = 2;
+	private static final int COLLISION_SET = 4;
+
+	private enum Kind {
+		// x, y * 2 + layer, old value, new value
+		stroke(4),
+		// x, y * 8 + what happened to the cell. its tile went from the action's old tile to its new one, its collision was set or cleared
+		fill(2),
+		// x, y * 2 + layer, old value of a cell cut off by the resize
+		resize(3);
+
+		private final int recordSize;
+
+		Kind(int recordSize) {
+			this.recordSize = recordSize;
+		}
+	}
+
+	private static class Action {
+		Kind kind;
+		// the tiles every tile of a fill changed between
+		int oldId;
+		int id;
+		// positions in the ring, counted from when the history was created
+		long start;
+		long end;
+		// set once the action has changed something
+		boolean started;
+		// set if the action grew past the memory limit and can't be undone
+		boolean overflowed;
+
+		int oldColumns;
+		int oldRows;
+		int columns;
+		int rows;
+		MapModel.Anchor anchor;
+	}
+
+	private final MapPanel mapPanel;
+	private final int maximumCapacity;
+
+	private int[] ring;
+	private long head;
+	private long tail;
+
+	private Deque<Action> undoActions;
+	private Deque<Action> redoActions;
+	private Action current;
+
+	// set while undoing or redoing so the edits made aren't recorded again
+	private boolean applying;
+
+	public UndoHistory(MapPanel mapPanel, int memoryLimit) {
+		this.mapPanel = mapPanel;
+
+		maximumCapacity = Math.max(INITIAL_CAPACITY, memoryLimit / 4);
+		ring = new int[INITIAL_CAPACITY];
+		undoActions = new ArrayDeque<>();
+		redoActions = new ArrayDeque<>();
+	}
+
+	public boolean canUndo() {
+		return !undoActions.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !redoActions.isEmpty();
+	}
+
+	/* true while an undo or redo is making its edits */
+	public boolean isApplying() {
+		return applying;
+	}
+
+	public void clear() {
+		undoActions.clear();
+		redoActions.clear();
+		current = null;
+		head = 0;
+		tail = 0;
+	}
+
+	/* group the edits that follow into one action, until endAction */
+	public void beginStroke() {
+		begin(Kind.stroke);
+	}
+
+	/* an action where every tile that changes goes from oldId to id, only the cells are stored.
+	   the collision of the cells may change either way as well */
+	public void beginFill(int oldId, int id) {
+		begin(Kind.fill);
+		if(current != null) {
+			current.oldId = oldId;
+			current.id = id;
+		}
+	}
+
+	/* an action that only sets and clears collision, only the cells are stored */
+	public void beginCollisionFill() {
+		beginFill(0, 0);
+	}
+
+	/* a resize has to be recorded before the map changes, while the cells it cuts off can still be read */
+	public void resized(int columns, int rows, MapModel.Anchor anchor) {
+		if(applying) { return; }
+
+		MapModel map = mapPanel.getMap();
+		begin(Kind.resize);
+		current.oldColumns = map.getColumns();
+		current.oldRows = map.getRows();
+		current.columns = columns;
+		current.rows = rows;
+		current.anchor = anchor;
+		start();
+
+		// the part of the old map that is kept
+		int oldColumns = current.oldColumns;
+		int oldRows = current.oldRows;
+		int offsetX = anchor.offsetX(oldColumns, columns);
+		int offsetY = anchor.offsetY(oldRows, rows);
+		int keptLeft = Math.min(oldColumns, Math.max(0, -offsetX));
+		int keptRight = Math.max(keptLeft, Math.min(oldColumns, columns - offsetX));
+		int keptTop = Math.min(oldRows, Math.max(0, -offsetY));
+		int keptBottom = Math.max(keptTop, Math.min(oldRows, rows - offsetY));
+
+		// only the strips cut off are read, whole rows above and below what is kept and the ends of the rows between
+		int[][] strips = {
+			{ 0, 0, oldColumns, keptTop },
+			{ 0, keptBottom, oldColumns, oldRows },
+			{ 0, keptTop, keptLeft, keptBottom },
+			{ keptRight, keptTop, oldColumns, keptBottom }
+		};
+		map.forEachRegion((startX, startY, width, height) -> {
+			for(int[] strip : strips) {
+				int left = Math.max(startX, strip[0]);
+				int right = Math.min(startX + width, strip[2]);
+				int bottom = Math.min(startY + height, strip[3]);
+				for(int y = Math.max(startY, strip[1]); y < bottom; y++) {
+					for(int x = left; x < right; x++) {
+						recordCutCell(map, x, y);
+					}
+				}
+			}
+		});
+		endAction();
+	}
+
+	private void recordCutCell(MapModel map, int x, int y) {
+		int tile = map.getTile(x, y);
+		if(tile != 0 && reserve(3)) {
+			put(x);
+			put(y * 2 + TILE_LAYER);
+			put(tile);
+		}
+		if(map.getCollision(x, y) != 0 && reserve(3)) {
+			put(x);
+			put(y * 2 + COLLISION_LAYER);
+			put(1);
+		}
+	}
+
+	private void begin(Kind kind) {
+		if(applying) { return; }
+
+		endAction();
+		current = new Action();
+		current.kind = kind;
+	}
+
+	/* left until the first change, so a click that paints nothing keeps redo available */
+	private void start() {
+		current.started = true;
+		// anything undone can no longer be redone, its space is reused
+		redoActions.clear();
+		head = undoActions.isEmpty() ? tail : undoActions.peekLast().end;
+		current.start = head;
+		current.end = head;
+	}
+
+	public void endAction() {
+		if(current == null) { return; }
+
+		Action action = current;
+		current = null;
+		if(action.overflowed) {
+			// older actions were dropped to make room and this one still didn't fit
+			clear();
+		}
+		else if(action.started) {
+			undoActions.addLast(action);
+		}
+	}
+
+	public void tileChanged(int x, int y, int oldId, int id) {
+		cellChanged(x, y * 2 + TILE_LAYER, oldId, id);
+	}
+
+	public void collisionChanged(int x, int y, int oldValue, int value) {
+		cellChanged(x, y * 2 + COLLISION_LAYER, oldValue, value);
+	}
+
+	private void cellChanged(int x, int yLayer, int oldValue, int value) {
+		if(applying) { return; }
+
+		// a change made outside any stroke is an action of its own
+		boolean single = current == null;
+		if(single) {
+			begin(Kind.stroke);
+		}
+		if(current.kind == Kind.fill) {
+			fillCellChanged(x, yLayer >> 1, (yLayer & 1) == TILE_LAYER ? TILE_CHANGED : COLLISION_CHANGED | (value != 0 ? COLLISION_SET : 0));
+		}
+		else if(reserve(current.kind.recordSize)) {
+			put(x);
+			put(yLayer);
+			put(oldValue);
+			put(value);
+		}
+		if(single) {
+			endAction();
+		}
+	}
+
+	private void fillCellChanged(int x, int y, int change) {
+		// the collision a tile brings with it goes in the tile's record
+		if(!current.overflowed && current.end - current.start >= 2 && (change & COLLISION_CHANGED) != 0) {
+			int last = get(current.end - 1);
+			if(get(current.end - 2) == x && last >> 3 == y && (last & COLLISION_CHANGED) == 0) {
+				ring[(int)((current.end - 1) % ring.length)] = last | change;
+				return;
+			}
+		}
+		if(reserve(2)) {
+			put(x);
+			put(y << 3 | change);
+		}
+	}
+
+	/* make space for the next record of the current action, false if there is none */
+	private boolean reserve(int size) {
+		if(!current.started) {
+			start();
+		}
+		if(!current.overflowed && head + size - tail > ring.length) {
+			makeRoom(size);
+		}
+		return !current.overflowed;
+	}
+
+	private void put(int value) {
+		ring[(int)(head++ % ring.length)] = value;
+		current.end = head;
+	}
+
+	/* grow the ring if it's still under the limit, otherwise drop the oldest actions */
+	private void makeRoom(int size) {
+		if(ring.length < maximumCapacity) {
+			int[] grown = new int[(int)Math.min(maximumCapacity, ring.length * 2L)];
+			for(long i = tail; i < head; i++) {
+				grown[(int)(i % grown.length)] = ring[(int)(i % ring.length)];
+			}
+			ring = grown;
+		}
+		while(head + size - tail > ring.length) {
+			if(undoActions.isEmpty()) {
+				current.overflowed = true;
+				return;
+			}
+			tail = undoActions.pollFirst().end;
+		}
+	}
+
+	public void undo() {
+		endAction();
+		if(undoActions.isEmpty()) { return; }
+
+		Action action = undoActions.pollLast();
+		applying = true;
+		try {
+			if(action.kind == Kind.resize) {
+				mapPanel.resize(action.oldColumns, action.oldRows, action.anchor);
+			}
+			// backwards, so a cell changed twice in a stroke ends up with its first old value
+			int size = action.kind.recordSize;
+			for(long i = action.end - size; i >= action.start; i -= size) {
+				if(action.kind == Kind.fill) {
+					setFillCell(action, i, false);
+				}
+				else {
+					setCell(get(i), get(i + 1), get(i + 2));
+				}
+			}
+		}
+		finally {
+			applying = false;
+		}
+		redoActions.push(action);
+	}
+
+	public void redo() {
+		endAction();
+		if(redoActions.isEmpty()) { return; }
+
+		Action action = redoActions.pop();
+		applying = true;
+		try {
+			if(action.kind == Kind.resize) {
+				mapPanel.resize(action.columns, action.rows, action.anchor);
+			}
+			else {
+				int size = action.kind.recordSize;
+				for(long i = action.start; i < action.end; i += size) {
+					if(action.kind == Kind.fill) {
+						setFillCell(action, i, true);
+					}
+					else {
+						setCell(get(i), get(i + 1), get(i + 3));
+					}
+				}
+			}
+		}
+		finally {
+			applying = false;
+		}
+		undoActions.addLast(action);
+	}
+
+	private int get(long position) {
+		return ring[(int)(position % ring.length)];
+	}
+
+	/* put a cell of a fill back how it was before it, or how it was after */
+	private void setFillCell(Action action, long position, boolean after) {
+		int x = get(position);
+		int y = get(position + 1) >> 3;
+		int change = get(position + 1) & 7;
+		if((change & TILE_CHANGED) != 0) {
+			mapPanel.restoreTile(x, y, after ? action.id : action.oldId);
+		}
+		if((change & COLLISION_CHANGED) != 0) {
+			mapPanel.restoreCollision(x, y, ((change & COLLISION_SET) != 0) == after ? 1 : 0);
+		}
+	}
+
+	private void setCell(int x, int yLayer, int value) {
+		if((yLayer & 1) == TILE_LAYER) {
+			mapPanel.restoreTile(x, yLayer >> 1, value);
+		}
+		else {
+			mapPanel.restoreCollision(x, yLayer >> 1, value);
+		}
+	}
+
+}